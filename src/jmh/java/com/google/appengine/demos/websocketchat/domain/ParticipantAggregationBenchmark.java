@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.domain;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the aggregation of the participant lists of the server nodes into the global
+ * participant list of a chat room, as {@link ChatRoomParticipants#getParticipants(String,
+ * java.util.Collection)} does after loading the entities from the datastore.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticipantAggregationBenchmark {
+
+  /* The number of the server nodes hosting the chat room. */
+  @Param({"1", "3", "10"})
+  private int serverNodes;
+
+  /* The number of the participants of the chat room on every server node. */
+  @Param({"10", "100", "1000"})
+  private int participantsPerServerNode;
+
+  private List<ChatRoomParticipants> chatRoomParticipantsList;
+
+  /* The keys of the entities need an App Engine environment. */
+  private LocalServiceTestHelper helper;
+
+  @Setup
+  public void setUp() {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    chatRoomParticipantsList = new ArrayList<>();
+    for (int serverNode = 0; serverNode < serverNodes; serverNode++) {
+      Set<String> participants = new TreeSet<>();
+      for (int i = 0; i < participantsPerServerNode; i++) {
+        participants.add("user" + (serverNode * participantsPerServerNode + i));
+      }
+      chatRoomParticipantsList.add(new ChatRoomParticipants("#vmruntime",
+          "ws://10.0.0." + serverNode + ":65080/", participants));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public Set<String> mergeParticipants() {
+    return ChatRoomParticipants.mergeParticipants(chatRoomParticipantsList);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the JSON encoding and decoding of the ChatMessage and the ParticipantListMessage
+ * with Gson, in the same way as the ChatSocketServer does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageJsonBenchmark {
+
+  private static final Gson GSON = new Gson();
+
+  private static final JsonParser JSON_PARSER = new JsonParser();
+
+  /* The number of the participants in the participant list. */
+  @Param({"10", "100", "1000"})
+  private int participants;
+
+  private ChatMessage chatMessage;
+
+  private String chatMessageJson;
+
+  private ParticipantListMessage participantListMessage;
+
+  private String participantListMessageJson;
+
+  @Setup
+  public void setUp() {
+    chatMessage = new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "alice", "#vmruntime",
+        "Hello, this is a message of a typical length in a chat room.");
+    chatMessageJson = chatMessage.toJson(GSON);
+    Set<String> participantSet = new TreeSet<>();
+    for (int i = 0; i < participants; i++) {
+      participantSet.add("user" + i);
+    }
+    participantListMessage = new ParticipantListMessage("#vmruntime", participantSet, 1L);
+    participantListMessageJson = participantListMessage.toJson(GSON);
+  }
+
+  @Benchmark
+  public String encodeChatMessage() {
+    return chatMessage.toJson(GSON);
+  }
+
+  @Benchmark
+  public ChatMessage decodeChatMessage() {
+    return GSON.fromJson(chatMessageJson, ChatMessage.class);
+  }
+
+  /* Decodes as ChatSocketServer.onMessage does, through a JsonObject. */
+  @Benchmark
+  public ChatMessage parseAndDecodeChatMessage() {
+    return GSON.fromJson(JSON_PARSER.parse(chatMessageJson).getAsJsonObject(), ChatMessage.class);
+  }
+
+  @Benchmark
+  public String encodeParticipantListMessage() {
+    return participantListMessage.toJson(GSON);
+  }
+
+  @Benchmark
+  public ParticipantListMessage decodeParticipantListMessage() {
+    return GSON.fromJson(participantListMessageJson, ParticipantListMessage.class);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a propagate batch between two server nodes in the JSON PropagateBatchMessage and in
+ * the BinaryPropagateCodec, encoding it as the PeerConnectionManager does and decoding it as the
+ * ChatSocketServer does. The size of a frame in each encoding is printed once per trial.
+ *
+ * <p>The chat rooms of the batch are interned in the room dictionary of the connection before
+ * the measurement, as they are on a long-lived connection.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropagateEncodingBenchmark {
+
+  private static final Gson GSON = new Gson();
+
+  /* The number of the messages in the batch. */
+  @Param({"1", "10", "100"})
+  private int batchSize;
+
+  private List<ChatMessage> batch;
+
+  private String jsonFrame;
+
+  private BinaryPropagateCodec.Encoder encoder;
+
+  private BinaryPropagateCodec.Decoder decoder;
+
+  private byte[] binaryFrame;
+
+  @Setup
+  public void setUp() {
+    batch = new ArrayList<>();
+    for (int i = 0; i < batchSize; i++) {
+      batch.add(new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "user" + i,
+          "#room" + (i % 10), "Hello, this is a message of a typical length in a chat room."));
+    }
+    jsonFrame = encodeJson();
+    encoder = new BinaryPropagateCodec.Encoder(GSON);
+    decoder = new BinaryPropagateCodec.Decoder(GSON);
+    // The first frame interns the chat rooms on both ends.
+    decoder.decode(ByteBuffer.wrap(encoder.encode(batch)));
+    binaryFrame = encoder.encode(batch);
+    System.out.println("Frame size of " + batchSize + " messages: JSON "
+        + jsonFrame.getBytes(StandardCharsets.UTF_8).length + " bytes, binary "
+        + binaryFrame.length + " bytes.");
+  }
+
+  @Benchmark
+  public String encodeJson() {
+    PropagateBatchMessage batchMessage = new PropagateBatchMessage();
+    for (ChatMessage message : batch) {
+      batchMessage.add(ChatMessage.createPropagateMessage(message, GSON));
+    }
+    return GSON.toJson(batchMessage);
+  }
+
+  @Benchmark
+  public List<PropagatedMessage> decodeJson() {
+    return PropagateBatchMessage.readMessages(jsonFrame);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return encoder.encode(batch);
+  }
+
+  @Benchmark
+  public List<PropagatedMessage> decodeBinary() {
+    return decoder.decode(ByteBuffer.wrap(binaryFrame));
+  }
+}
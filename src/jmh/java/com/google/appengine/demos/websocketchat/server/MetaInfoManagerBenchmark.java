@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks the MetaInfoManager under contention, with a thread repeatedly entering and leaving
+ * a chat room while other threads look up the connections and the participants of the same chat
+ * room, as the selector thread and the bridge workers do.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetaInfoManagerBenchmark {
+
+  private static final String ROOM = "room";
+
+  /* The number of the connections already in the chat room. */
+  @Param({"10", "1000"})
+  private int roomSize;
+
+  private MetaInfoManager metaInfoManager;
+
+  private WebSocket existingConnection;
+
+  /**
+   * The connection of a single benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class ThreadConnection {
+
+    private static final AtomicInteger NEXT_INDEX = new AtomicInteger(1 << 20);
+
+    private WebSocket connection;
+
+    private String name;
+
+    @Setup
+    public void setUp() {
+      int index = NEXT_INDEX.getAndIncrement();
+      connection = new StubWebSocket(index);
+      name = "user" + index;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    metaInfoManager = new MetaInfoManager();
+    for (int i = 0; i < roomSize; i++) {
+      WebSocket connection = new StubWebSocket(i);
+      metaInfoManager.addConnection(connection, "user" + i, ROOM);
+      if (i == 0) {
+        existingConnection = connection;
+      }
+    }
+    // The lookup must hit, the connections are compared by identity.
+    if (metaInfoManager.getConnectionInfo(existingConnection) == null) {
+      throw new IllegalStateException("existingConnection is not in the MetaInfoManager.");
+    }
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public void enterAndLeave(ThreadConnection threadConnection) {
+    metaInfoManager.addConnection(threadConnection.connection, threadConnection.name, ROOM);
+    metaInfoManager.removeConnection(threadConnection.connection);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public Set<WebSocket> getConnections() {
+    return metaInfoManager.getConnections(ROOM);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public MetaInfoManager.ConnectionInfo getConnectionInfo() {
+    return metaInfoManager.getConnectionInfo(existingConnection);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public int getParticipantList() {
+    return metaInfoManager.getParticipantList(ROOM).size();
+  }
+}
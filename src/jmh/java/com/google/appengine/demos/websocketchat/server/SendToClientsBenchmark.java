@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.demos.websocketchat.message.ChatMessage;
+import com.google.appengine.demos.websocketchat.message.OutgoingMessage;
+import com.google.appengine.demos.websocketchat.message.PropagatedMessage;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the fan-out of a chat message to the clients on a server node by
+ * {@link ChatSocketServer#sendToClients(OutgoingMessage)}, with the clients replaced by
+ * StubWebSockets.
+ *
+ * <p>The messages are PropagatedMessages, as if they came from another server node, so that the
+ * benchmark doesn't fill the propagateQueues which are drained by the bridge in production. The
+ * other rooms on the server node only make the lookups of the connections realistic.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendToClientsBenchmark {
+
+  private static final Gson GSON = new Gson();
+
+  /* The number of the connections in every chat room. */
+  @Param({"1", "100", "1000"})
+  private int roomSize;
+
+  /* The number of the chat rooms on the server node. */
+  @Param({"1", "100"})
+  private int rooms;
+
+  private ChatSocketServer chatSocketServer;
+
+  private PropagatedMessage[] messages;
+
+  private int next;
+
+  @Setup
+  public void setUp() {
+    chatSocketServer = new ChatSocketServer(0);
+    MetaInfoManager metaInfoManager = chatSocketServer.getMetaInfoManager();
+    messages = new PropagatedMessage[rooms];
+    for (int room = 0; room < rooms; room++) {
+      for (int i = 0; i < roomSize; i++) {
+        metaInfoManager.addConnection(new StubWebSocket(room * roomSize + i), "user" + i,
+            "room" + room);
+      }
+      messages[room] = PropagatedMessage.fromOriginal(new ChatMessage(
+          OutgoingMessage.MessageType.MESSAGE, "alice", "room" + room,
+          "Hello, this is a message of a typical length in a chat room."), GSON);
+    }
+  }
+
+  @Benchmark
+  public void sendToClients() {
+    chatSocketServer.sendToClients(messages[next]);
+    next = (next + 1) % messages.length;
+  }
+}
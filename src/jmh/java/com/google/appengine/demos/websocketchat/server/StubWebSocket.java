@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.framing.Framedata;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * An in-memory websocket connection for the benchmarks, which only counts the frames sent to it
+ * instead of writing them to a socket.
+ */
+public class StubWebSocket implements WebSocket {
+
+  private final InetSocketAddress remoteSocketAddress;
+
+  private long sentFrames;
+
+  private long sentBytes;
+
+  /**
+   * Creates a StubWebSocket with a remote address unique to the given index.
+   *
+   * @param index an index of the connection, which makes its remote address unique.
+   */
+  public StubWebSocket(int index) {
+    try {
+      InetAddress address = InetAddress.getByAddress(
+          new byte[] {10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index});
+      remoteSocketAddress = new InetSocketAddress(address, 1024 + (index >>> 24));
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Returns the number of the frames sent to this connection.
+   *
+   * @return the number of the frames sent to this connection.
+   */
+  public long getSentFrames() {
+    return sentFrames;
+  }
+
+  /**
+   * Returns the number of the payload bytes sent to this connection.
+   *
+   * @return the number of the payload bytes sent to this connection.
+   */
+  public long getSentBytes() {
+    return sentBytes;
+  }
+
+  @Override
+  public void close(int code, String message) {
+  }
+
+  @Override
+  public void close(int code) {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public void closeConnection(int code, String message) {
+  }
+
+  @Override
+  public void send(String text) {
+    sentFrames++;
+    sentBytes += text.length();
+  }
+
+  @Override
+  public void send(ByteBuffer bytes) {
+    sentFrames++;
+    sentBytes += bytes.remaining();
+  }
+
+  @Override
+  public void send(byte[] bytes) {
+    sentFrames++;
+    sentBytes += bytes.length;
+  }
+
+  @Override
+  public void sendFrame(Framedata framedata) {
+    sentFrames++;
+    sentBytes += framedata.getPayloadData().remaining();
+  }
+
+  @Override
+  public boolean hasBufferedData() {
+    return false;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteSocketAddress() {
+    return remoteSocketAddress;
+  }
+
+  @Override
+  public InetSocketAddress getLocalSocketAddress() {
+    return null;
+  }
+
+  @Override
+  public boolean isConnecting() {
+    return false;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public boolean isClosing() {
+    return false;
+  }
+
+  @Override
+  public boolean isFlushAndClose() {
+    return false;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return false;
+  }
+
+  @Override
+  public Draft getDraft() {
+    return new Draft_17();
+  }
+
+  @Override
+  public READYSTATE getReadyState() {
+    return READYSTATE.OPEN;
+  }
+
+  @Override
+  public String toString() {
+    return "StubWebSocket" + remoteSocketAddress;
+  }
+}
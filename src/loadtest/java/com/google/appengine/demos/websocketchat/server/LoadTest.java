@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.appengine.demos.websocketchat.domain.ChatRoomParticipants;
+import com.google.appengine.demos.websocketchat.domain.ServerNodeLoad;
+import com.google.appengine.demos.websocketchat.domain.WebSocketServerNode;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-process load test, which starts several server nodes in a single JVM on the local
+ * datastore and drives many simulated users across many chat rooms through them.
+ *
+ * <p>Each user enters one of the chat rooms chosen round-robin, and is connected to the next
+ * server node on every round over the chat rooms. So a chat room spans the server nodes whatever
+ * the numbers of the chat rooms and the server nodes are, as long as there are more users than
+ * chat rooms, and the messages have to be propagated between them. Once every user entered,
+ * each user sends {@link #MESSAGES_PER_USER} messages every {@link #MESSAGE_INTERVAL_MILLIS}.
+ * After the delivery settles, the load test reports the delivery latency percentiles within a
+ * server node and across the server nodes, the lost and the duplicated deliveries, and the
+ * throughput. Then it waits for the participant lists to converge, and reports whether every
+ * user sees the full participant list of the chat room.
+ * The process exits with 1 when a delivery was lost, a participant list didn't converge, or no
+ * message crossed the server nodes.</p>
+ *
+ * <p>Every parameter is a system property, e.x. {@code -Dloadtest.users=2000}. Setting
+ * websocketchat.participantDirectory.ttlSeconds to a few seconds shortens the wait for the
+ * participant lists.</p>
+ */
+public class LoadTest {
+
+  private static final Logger LOG = Logger.getLogger(LoadTest.class.getName());
+
+  private static final int NODES = Integer.getInteger("loadtest.nodes", 3);
+
+  private static final int BASE_PORT = Integer.getInteger("loadtest.basePort", 65080);
+
+  private static final int USERS = Integer.getInteger("loadtest.users", 1000);
+
+  private static final int ROOMS = Integer.getInteger("loadtest.rooms", 50);
+
+  private static final int MESSAGES_PER_USER = Integer.getInteger("loadtest.messagesPerUser", 10);
+
+  private static final long MESSAGE_INTERVAL_MILLIS =
+      Long.getLong("loadtest.messageIntervalMillis", 1000L);
+
+  private static final long SETTLE_MILLIS = Long.getLong("loadtest.settleMillis", 5000L);
+
+  private static final long ENTER_TIMEOUT_MILLIS =
+      Long.getLong("loadtest.enterTimeoutMillis", 30000L);
+
+  /*
+   * A participant who entered while the server nodes were still discovering each other's chat
+   * rooms is only visible to the others after their ParticipantDirectory expired, which is
+   * noticed on the next refresh of the NodeRegistry.
+   */
+  private static final long PARTICIPANT_LIST_WAIT_MILLIS = Long.getLong(
+      "loadtest.participantListWaitMillis", TimeUnit.SECONDS.toMillis(
+          Long.getLong("websocketchat.participantDirectory.ttlSeconds", 30L)
+              + Long.getLong("websocketchat.nodeRegistry.refreshSeconds", 10L)) + SETTLE_MILLIS);
+
+  /**
+   * Returns the index of the server node which the given user is connected to. It is derived
+   * from the round over the chat rooms, not from the user alone, so that the users of a chat
+   * room don't all land on the same server node when the number of the chat rooms is a multiple
+   * of the number of the server nodes.
+   *
+   * @param user an index of the user.
+   * @return an index of the server node.
+   */
+  static int getNodeOfUser(int user) {
+    return (user / ROOMS) % NODES;
+  }
+
+  private static String getRoomOfUser(int user) {
+    return "room" + (user % ROOMS);
+  }
+
+  private static int getRoomIndexOfUser(SimulatedUser user) {
+    return Integer.parseInt(user.getRoom().substring("room".length()));
+  }
+
+  public static void main(String[] args) throws Exception {
+    // The server nodes log every message at INFO.
+    Logger.getLogger("com.google.appengine.demos.websocketchat").setLevel(Level.WARNING);
+    Logger.getLogger("").setLevel(Level.WARNING);
+    LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+    helper.setUp();
+    // The server nodes listen on localhost outside of production.
+    SystemProperty.environment.set(SystemProperty.Environment.Value.Development);
+    ObjectifyService.register(WebSocketServerNode.class);
+    ObjectifyService.register(ChatRoomParticipants.class);
+    ObjectifyService.register(ServerNodeLoad.class);
+    ThreadFactory threadFactory = newEnvironmentThreadFactory(ApiProxy.getCurrentEnvironment());
+
+    List<ChatSocketServer.ChatServerBridge> bridges = new ArrayList<>();
+    for (int i = 0; i < NODES; i++) {
+      ChatSocketServer.ChatServerBridge bridge =
+          new ChatSocketServer.ChatServerBridge(BASE_PORT + i, threadFactory);
+      bridge.start();
+      bridges.add(bridge);
+    }
+    // Let the server nodes connect to each other before the users arrive.
+    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+
+    List<SimulatedUser> users = enterUsers(bridges);
+    int[] roomPopulation = new int[ROOMS];
+    for (SimulatedUser user : users) {
+      roomPopulation[getRoomIndexOfUser(user)]++;
+    }
+    // Let the subscriptions and the participant lists propagate.
+    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+
+    System.out.println("Sending " + MESSAGES_PER_USER + " messages per user.");
+    AtomicLong sentMessages = new AtomicLong();
+    AtomicLong expectedDeliveries = new AtomicLong();
+    long sendStart = System.nanoTime();
+    sendMessages(users, roomPopulation, sentMessages, expectedDeliveries);
+    long sendNanos = System.nanoTime() - sendStart;
+    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+    long deliveryNanos = System.nanoTime() - sendStart;
+
+    System.out.println("Waiting " + PARTICIPANT_LIST_WAIT_MILLIS
+        + "ms for the participant lists to converge.");
+    TimeUnit.MILLISECONDS.sleep(PARTICIPANT_LIST_WAIT_MILLIS);
+    for (SimulatedUser user : users) {
+      user.requestParticipantList();
+    }
+    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+
+    boolean passed = report(users, sentMessages.get(), expectedDeliveries.get(), sendNanos,
+        deliveryNanos);
+
+    for (SimulatedUser user : users) {
+      user.close();
+    }
+    for (ChatSocketServer.ChatServerBridge bridge : bridges) {
+      bridge.stop();
+    }
+    helper.tearDown();
+    System.exit(passed ? 0 : 1);
+  }
+
+  /**
+   * Returns a ThreadFactory whose threads run with the given App Engine environment, as the
+   * background threads of App Engine do.
+   */
+  private static ThreadFactory newEnvironmentThreadFactory(
+      final ApiProxy.Environment environment) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            runnable.run();
+          }
+        });
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static List<SimulatedUser> enterUsers(List<ChatSocketServer.ChatServerBridge> bridges)
+      throws Exception {
+    List<SimulatedUser> connecting = new ArrayList<>();
+    for (int i = 0; i < USERS; i++) {
+      int node = getNodeOfUser(i);
+      SimulatedUser user = new SimulatedUser(new URI(bridges.get(node).getWebSocketURL()), i,
+          node, getRoomOfUser(i));
+      user.connect();
+      connecting.add(user);
+    }
+    long deadline = System.currentTimeMillis() + ENTER_TIMEOUT_MILLIS;
+    List<SimulatedUser> users = new ArrayList<>();
+    for (SimulatedUser user : connecting) {
+      long remaining = Math.max(0, deadline - System.currentTimeMillis());
+      if (user.getEntered().await(remaining, TimeUnit.MILLISECONDS)
+          && user.getConnection().isOpen()) {
+        users.add(user);
+      } else {
+        LOG.warning(user.getName() + " failed to enter " + user.getRoom());
+        user.close();
+      }
+    }
+    System.out.println("Users entered: " + users.size() + "/" + USERS);
+    return users;
+  }
+
+  /**
+   * Sends {@link #MESSAGES_PER_USER} messages from every user, and waits until they are sent.
+   * Every message sent is expected to be delivered to every user in the chat room, including
+   * the sender.
+   */
+  private static void sendMessages(List<SimulatedUser> users, final int[] roomPopulation,
+                                   final AtomicLong sentMessages,
+                                   final AtomicLong expectedDeliveries)
+      throws InterruptedException {
+    ScheduledExecutorService scheduler =
+        Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+    final CountDownLatch finished = new CountDownLatch(users.size());
+    for (final SimulatedUser user : users) {
+      // Spread the users over the interval, so that the load is steady.
+      long initialDelay = ThreadLocalRandom.current().nextLong(MESSAGE_INTERVAL_MILLIS);
+      scheduler.scheduleAtFixedRate(new Runnable() {
+        private int sequence;
+
+        @Override
+        public void run() {
+          if (sequence >= MESSAGES_PER_USER) {
+            return;
+          }
+          try {
+            user.sendChatMessage(sequence);
+            sentMessages.incrementAndGet();
+            expectedDeliveries.addAndGet(roomPopulation[getRoomIndexOfUser(user)]);
+          } catch (RuntimeException e) {
+            LOG.warning(user.getName() + " failed to send: " + e);
+          }
+          if (++sequence == MESSAGES_PER_USER) {
+            finished.countDown();
+          }
+        }
+      }, initialDelay, MESSAGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    finished.await();
+    scheduler.shutdownNow();
+  }
+
+  private static boolean report(List<SimulatedUser> users, long sentMessages,
+                                long expectedDeliveries, long sendNanos, long deliveryNanos) {
+    List<Long> sameNodeLatencies = new ArrayList<>();
+    List<Long> crossNodeLatencies = new ArrayList<>();
+    long receivedMessages = 0;
+    long duplicatedMessages = 0;
+    long rejectedMessages = 0;
+    int convergedParticipantLists = 0;
+    for (SimulatedUser user : users) {
+      sameNodeLatencies.addAll(user.getSameNodeLatencies());
+      crossNodeLatencies.addAll(user.getCrossNodeLatencies());
+      receivedMessages += user.getReceivedMessages();
+      duplicatedMessages += user.getDuplicatedMessages();
+      rejectedMessages += user.getRejectedMessages();
+      Set<String> participants = user.getParticipants();
+      if (participants != null && participants.equals(getExpectedParticipants(users, user))) {
+        convergedParticipantLists++;
+      }
+    }
+    long lostMessages = expectedDeliveries - receivedMessages;
+    double sendSeconds = sendNanos / 1e9;
+    double deliverySeconds = deliveryNanos / 1e9;
+    System.out.println("Server nodes: " + NODES + ", users: " + users.size() + ", rooms: "
+        + ROOMS);
+    System.out.println(String.format("Sent: %d messages in %.1fs (%.0f msgs/s), %d rejected by "
+        + "the rate limits", sentMessages, sendSeconds, sentMessages / sendSeconds,
+        rejectedMessages));
+    System.out.println(String.format("Deliveries: %d expected, %d received (%.0f/s), %d lost "
+        + "(%.3f%%), %d duplicated", expectedDeliveries, receivedMessages,
+        receivedMessages / deliverySeconds, lostMessages,
+        expectedDeliveries == 0 ? 0.0 : 100.0 * lostMessages / expectedDeliveries,
+        duplicatedMessages));
+    printLatencies("same node", sameNodeLatencies);
+    printLatencies("cross node", crossNodeLatencies);
+    System.out.println("Participant lists converged: " + convergedParticipantLists + "/"
+        + users.size());
+    // Nothing about the propagation was measured without a delivery across the server nodes.
+    boolean crossedNodes = NODES == 1 || ! crossNodeLatencies.isEmpty();
+    if (! crossedNodes) {
+      System.out.println("No message crossed the server nodes, use more users than rooms.");
+    }
+    return lostMessages == 0 && rejectedMessages == 0 && duplicatedMessages == 0
+        && convergedParticipantLists == users.size() && crossedNodes;
+  }
+
+  private static Set<String> getExpectedParticipants(List<SimulatedUser> users,
+                                                     SimulatedUser user) {
+    Set<String> participants = new HashSet<>();
+    for (SimulatedUser other : users) {
+      if (other.getRoom().equals(user.getRoom())) {
+        participants.add(other.getName());
+      }
+    }
+    return participants;
+  }
+
+  private static void printLatencies(String label, List<Long> latencies) {
+    if (latencies.isEmpty()) {
+      System.out.println("Latency (" + label + "): no deliveries");
+      return;
+    }
+    Collections.sort(latencies);
+    System.out.println(String.format("Latency (%s, %d deliveries): p50 %.2fms, p90 %.2fms, "
+        + "p99 %.2fms, p99.9 %.2fms, max %.2fms", label, latencies.size(),
+        percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+        percentile(latencies, 99.9), latencies.get(latencies.size() - 1) / 1e6));
+  }
+
+  private static double percentile(List<Long> sortedLatencies, double percentile) {
+    int index = (int) Math.ceil(percentile / 100 * sortedLatencies.size()) - 1;
+    return sortedLatencies.get(Math.max(0, index)) / 1e6;
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.demos.websocketchat.message.ChatMessage;
+import com.google.appengine.demos.websocketchat.message.OutgoingMessage;
+import com.google.common.base.Throwables;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * A chat user driven by the LoadTest, which enters a chat room on a server node and records the
+ * messages it receives.
+ *
+ * <p>The text of every message sent by the LoadTest is "sender:sequence:nanoTime", so that the
+ * receivers can detect the lost and the duplicated messages and compute the delivery latency in
+ * the same JVM.</p>
+ */
+public class SimulatedUser extends WebSocketClient {
+
+  private static final Logger LOG = Logger.getLogger(SimulatedUser.class.getName());
+
+  private static final Gson GSON = new Gson();
+
+  private static final JsonParser JSON_PARSER = new JsonParser();
+
+  private final int index;
+
+  private final int node;
+
+  private final String name;
+
+  private final String room;
+
+  private final CountDownLatch entered;
+
+  private final Set<String> receivedMessageIds;
+
+  private final List<Long> sameNodeLatencies;
+
+  private final List<Long> crossNodeLatencies;
+
+  private long duplicatedMessages;
+
+  private long rejectedMessages;
+
+  private long participantListVersion = -1;
+
+  private Set<String> participants;
+
+  /**
+   * Creates a SimulatedUser.
+   *
+   * @param serverUri the websocket URL of the server node to connect to.
+   * @param index an index of this user, which is unique in the load test.
+   * @param node an index of the server node to connect to.
+   * @param room a name of the chat room to enter.
+   */
+  public SimulatedUser(URI serverUri, int index, int node, String room) {
+    super(serverUri, new Draft_10());
+    this.index = index;
+    this.node = node;
+    this.name = "user" + index;
+    this.room = room;
+    this.entered = new CountDownLatch(1);
+    this.receivedMessageIds = new HashSet<>();
+    this.sameNodeLatencies = new ArrayList<>();
+    this.crossNodeLatencies = new ArrayList<>();
+  }
+
+  /**
+   * Returns the index of the server node this user is connected to.
+   *
+   * @return the index of the server node this user is connected to.
+   */
+  public int getNode() {
+    return node;
+  }
+
+  /**
+   * Returns the name of this user.
+   *
+   * @return the name of this user.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the name of the chat room this user entered.
+   *
+   * @return the name of the chat room this user entered.
+   */
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * Returns the latch which is released when this user received the first message after ENTER.
+   *
+   * @return the latch which is released when this user entered the chat room.
+   */
+  public CountDownLatch getEntered() {
+    return entered;
+  }
+
+  /**
+   * Sends a MESSAGE to the chat room, whose text identifies the message and its send time.
+   *
+   * @param sequence a sequence number of the message from this user.
+   */
+  public void sendChatMessage(int sequence) {
+    String text = index + ":" + sequence + ":" + System.nanoTime();
+    send(GSON.toJson(new ChatMessage(OutgoingMessage.MessageType.MESSAGE, name, room, text)));
+  }
+
+  /**
+   * Requests the full participant list of the chat room.
+   */
+  public void requestParticipantList() {
+    send(GSON.toJson(new ChatMessage(OutgoingMessage.MessageType.PARTICIPANTS, name, room, "")));
+  }
+
+  @Override
+  public void onOpen(ServerHandshake handshake) {
+    send(GSON.toJson(new ChatMessage(OutgoingMessage.MessageType.ENTER, name, room, "")));
+  }
+
+  @Override
+  public void onMessage(String rawMessage) {
+    long now = System.nanoTime();
+    JsonObject json = JSON_PARSER.parse(rawMessage).getAsJsonObject();
+    String type = json.get("type").getAsString();
+    entered.countDown();
+    if (type.equals(OutgoingMessage.MessageType.MESSAGE.name())) {
+      onChatMessage(json.get("message").getAsString(), now);
+    } else if (type.equals(OutgoingMessage.MessageType.PARTICIPANTS.name())) {
+      Set<String> participantSet = new HashSet<>();
+      for (JsonElement participant : json.getAsJsonArray("participantSet")) {
+        participantSet.add(participant.getAsString());
+      }
+      onParticipantList(json.get("version").getAsLong(), participantSet);
+    } else if (type.equals(OutgoingMessage.MessageType.SYSTEM.name())) {
+      onSystemMessage();
+    }
+  }
+
+  private synchronized void onChatMessage(String text, long receivedNanos) {
+    String[] fields = text.split(":");
+    if (fields.length != 3) {
+      return;
+    }
+    if (! receivedMessageIds.add(fields[0] + ":" + fields[1])) {
+      duplicatedMessages++;
+      return;
+    }
+    long latency = receivedNanos - Long.parseLong(fields[2]);
+    if (LoadTest.getNodeOfUser(Integer.parseInt(fields[0])) == node) {
+      sameNodeLatencies.add(latency);
+    } else {
+      crossNodeLatencies.add(latency);
+    }
+  }
+
+  private synchronized void onParticipantList(long version, Set<String> participantSet) {
+    if (version >= participantListVersion) {
+      participantListVersion = version;
+      participants = participantSet;
+    }
+  }
+
+  private synchronized void onSystemMessage() {
+    rejectedMessages++;
+  }
+
+  /**
+   * Returns the number of the distinct messages this user received.
+   *
+   * @return the number of the distinct messages this user received.
+   */
+  public synchronized long getReceivedMessages() {
+    return receivedMessageIds.size();
+  }
+
+  /**
+   * Returns the number of the messages this user received more than once.
+   *
+   * @return the number of the messages this user received more than once.
+   */
+  public synchronized long getDuplicatedMessages() {
+    return duplicatedMessages;
+  }
+
+  /**
+   * Returns the number of the SYSTEM messages this user received, which reject its messages.
+   *
+   * @return the number of the SYSTEM messages this user received, which reject its messages.
+   */
+  public synchronized long getRejectedMessages() {
+    return rejectedMessages;
+  }
+
+  /**
+   * Returns the delivery latencies in nanoseconds of the messages from the same server node.
+   *
+   * @return the delivery latencies in nanoseconds of the messages from the same server node.
+   */
+  public synchronized List<Long> getSameNodeLatencies() {
+    return new ArrayList<>(sameNodeLatencies);
+  }
+
+  /**
+   * Returns the delivery latencies in nanoseconds of the messages from the other server nodes.
+   *
+   * @return the delivery latencies in nanoseconds of the messages from the other server nodes.
+   */
+  public synchronized List<Long> getCrossNodeLatencies() {
+    return new ArrayList<>(crossNodeLatencies);
+  }
+
+  /**
+   * Returns the last full participant list this user received.
+   *
+   * @return the last full participant list, or null if this user received none.
+   */
+  public synchronized Set<String> getParticipants() {
+    return participants;
+  }
+
+  @Override
+  public void onClose(int code, String reason, boolean remote) {
+    entered.countDown();
+  }
+
+  @Override
+  public void onError(Exception ex) {
+    LOG.warning(name + ": " + Throwables.getStackTraceAsString(ex));
+  }
+}
@@ -23,7 +23,10 @@ import com.googlecode.objectify.annotation.Parent;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
@@ -67,24 +70,82 @@ public class ChatRoomParticipants {
   public static Set<String> getParticipants(String room) {
     List<Key<WebSocketServerNode>> serverNodeKeyList = ofy().load()
         .type(WebSocketServerNode.class).ancestor(WebSocketServerNode.getRootKey()).keys().list();
+    List<String> serverNodes = new ArrayList<>();
+    for (Key<WebSocketServerNode> serverNodeKey: serverNodeKeyList) {
+      serverNodes.add(serverNodeKey.getName());
+    }
+    return getParticipants(room, serverNodes);
+  }
+
+  /**
+   * Returns the global list of participants of the given chat room among the given server nodes.
+   *
+   * <p>Unlike {@link #getParticipants(String)}, this method doesn't query the server nodes, so
+   * the caller can pass a cached list of the server nodes.</p>
+   *
+   * @param room a name of the chat room.
+   * @param serverNodes identifiers of the server nodes, in the form of websocket URL,
+   *                    e.x. "ws://173.255.112.201:65080/".
+   * @return the global list of participants of the given chat room.
+   */
+  public static Set<String> getParticipants(String room, Collection<String> serverNodes) {
     List<Key<ChatRoomParticipants>> chatRoomParticipantsKeys = new ArrayList<>();
     Key<ChatRoomParticipants> parentKey = Key.create(ChatRoomParticipants.class, room);
-    for (Key<WebSocketServerNode> serverNodeKey: serverNodeKeyList) {
+    for (String serverNode: serverNodes) {
       Key<ChatRoomParticipants> chatRoomParticipantsKey =
-          Key.create(parentKey, ChatRoomParticipants.class, serverNodeKey.getName());
+          Key.create(parentKey, ChatRoomParticipants.class, serverNode);
       LOG.info("chatRoomParticipantsKey: " + chatRoomParticipantsKey);
       chatRoomParticipantsKeys.add(chatRoomParticipantsKey);
     }
     Collection<ChatRoomParticipants> chatRoomParticipantsCollection =
         ofy().transaction().load().keys(chatRoomParticipantsKeys).values();
+    return mergeParticipants(chatRoomParticipantsCollection);
+  }
+
+  /**
+   * Returns the union of the participants in the given entities of a chat room.
+   *
+   * @param chatRoomParticipantsCollection the participant lists of a chat room within the server
+   *                                       nodes.
+   * @return the global list of participants of the chat room.
+   */
+  public static Set<String> mergeParticipants(
+      Collection<ChatRoomParticipants> chatRoomParticipantsCollection) {
     Set<String> participantSet = new TreeSet<>();
     for (ChatRoomParticipants participants: chatRoomParticipantsCollection) {
-      LOG.info("Adding " + participants.getParticipants());
-      participantSet.addAll(participants.getParticipants());
+      if (participants.participants != null) {
+        participantSet.addAll(participants.participants);
+      }
     }
     return participantSet;
   }
 
+  /**
+   * Returns the server nodes hosting at least one participant of each chat room.
+   *
+   * <p>This method runs a keys-only query over every ChatRoomParticipants entity, so it should
+   * only be used for periodically rebuilding a cache such as a routing table. The name of the
+   * chat room is the name of the parent key, and the server node is the name of the key, so the
+   * participants are never loaded. A server node deletes its entity of a chat room when the last
+   * participant leaves, so every key stands for at least one participant.</p>
+   *
+   * @return a map from the name of the chat room to the identifiers of the server nodes, in the
+   *         form of websocket URL, which host at least one participant of the chat room.
+   */
+  public static Map<String, Set<String>> getServerNodesByRoom() {
+    Map<String, Set<String>> serverNodesByRoom = new HashMap<>();
+    for (Key<ChatRoomParticipants> key : ofy().load().type(ChatRoomParticipants.class).keys()) {
+      String room = key.getParent().getName();
+      Set<String> serverNodes = serverNodesByRoom.get(room);
+      if (serverNodes == null) {
+        serverNodes = new HashSet<>();
+        serverNodesByRoom.put(room, serverNodes);
+      }
+      serverNodes.add(key.getName());
+    }
+    return serverNodesByRoom;
+  }
+
   /**
    * Creates an entity representing the list of the participants in a chat room within a single
    * server node.
@@ -112,6 +173,15 @@ public class ChatRoomParticipants {
     return new TreeSet<>(participants);
   }
 
+  /**
+   * Returns the name of the chat room of this entity.
+   *
+   * @return the name of the chat room of this entity.
+   */
+  public String getRoom() {
+    return parentKey.getName();
+  }
+
   /**
    * Returns the objectify key object representing this entity.
    *
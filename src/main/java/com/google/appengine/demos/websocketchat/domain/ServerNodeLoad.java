@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * An entity class which holds the load that a single websocket server node published last time.
+ *
+ * <p>Each server node periodically publishes its load with {@link #updateLoad}, so that new
+ * clients can be sent to the least loaded server node. Unlike {@link WebSocketServerNode}, this
+ * entity has no parent, so every server node writes to an entity group of its own and the load
+ * reports don't contend with each other however many server nodes there are.</p>
+ */
+@Entity
+public class ServerNodeLoad {
+
+  @Id
+  private String webSocketUrl;
+
+  private long numberOfClients;
+
+  private double messagesPerSecond;
+
+  private long outboundQueueDepth;
+
+  private long loadUpdatedAt;
+
+  /**
+   * Returns an objectify key representing the load of the given websocket server node.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @return an objectify key representing the load of the given websocket server node.
+   */
+  public static Key<ServerNodeLoad> getKeyFromWebSocketUrl(String webSocketUrl) {
+    return Key.create(ServerNodeLoad.class, webSocketUrl);
+  }
+
+  /* Objectify needs the default constructor. */
+  private ServerNodeLoad() {
+  }
+
+  /**
+   * Creates an instance representing the load of a single websocket server node, which has no
+   * load yet.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   */
+  public ServerNodeLoad(String webSocketUrl) {
+    this.webSocketUrl = webSocketUrl;
+    this.loadUpdatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the websocket URL of the server node.
+   *
+   * @return the websocket URL of the server node.
+   */
+  public String getWebSocketUrl() {
+    return webSocketUrl;
+  }
+
+  /**
+   * Updates the load of the server node.
+   *
+   * @param numberOfClients a number of the active connections from the clients, which doesn't
+   *                        include the connections from the other server nodes.
+   * @param messagesPerSecond a number of the incoming messages per second.
+   * @param outboundQueueDepth a number of the messages waiting to be sent.
+   */
+  public void updateLoad(long numberOfClients, double messagesPerSecond,
+      long outboundQueueDepth) {
+    this.numberOfClients = numberOfClients;
+    this.messagesPerSecond = messagesPerSecond;
+    this.outboundQueueDepth = outboundQueueDepth;
+    this.loadUpdatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the number of the active connections from the clients.
+   *
+   * @return the number of the active connections from the clients.
+   */
+  public long getNumberOfClients() {
+    return numberOfClients;
+  }
+
+  /**
+   * Returns the number of the incoming messages per second.
+   *
+   * @return the number of the incoming messages per second.
+   */
+  public double getMessagesPerSecond() {
+    return messagesPerSecond;
+  }
+
+  /**
+   * Returns the number of the messages waiting to be sent.
+   *
+   * @return the number of the messages waiting to be sent.
+   */
+  public long getOutboundQueueDepth() {
+    return outboundQueueDepth;
+  }
+
+  /**
+   * Returns the time in milliseconds when the load was updated last time.
+   *
+   * @return the time in milliseconds when the load was updated last time.
+   */
+  public long getLoadUpdatedAt() {
+    return loadUpdatedAt;
+  }
+
+  /**
+   * Returns a single score of the load of the server node, which is the sum of the number of
+   * the active connections from the clients, the incoming messages per second and the messages
+   * waiting to be sent.
+   *
+   * @return a single score of the load of the server node. Smaller is less loaded.
+   */
+  public double getLoadScore() {
+    return numberOfClients + messagesPerSecond + outboundQueueDepth;
+  }
+}
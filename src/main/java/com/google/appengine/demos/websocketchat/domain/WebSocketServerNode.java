@@ -22,8 +22,12 @@ import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Parent;
 
 /**
- * An entity class which represents a single websocket server node and holds a number of
- * active connections for this server node.
+ * An entity class which represents a single active websocket server node.
+ *
+ * <p>Every instance shares the root key as the parent, so that the active server nodes can be
+ * listed by a strongly consistent ancestor query. The entity is only written when a server node
+ * starts or stops. The number of the connections and the rest of the load of the server node
+ * are kept in a {@link ServerNodeLoad} entity of its own.</p>
  */
 @Entity
 public class WebSocketServerNode {
@@ -34,8 +38,6 @@ public class WebSocketServerNode {
   @Parent
   private Key<WebSocketServerNode> parentKey;
 
-  private long numberOfParticipants;
-
   /**
    * Returns an objectify key commonly used as the parent key for every instance of this class.
    *
@@ -69,7 +71,6 @@ public class WebSocketServerNode {
   public WebSocketServerNode(String webSocketUrl) {
     this.parentKey = getRootKey();
     this.webSocketUrl = webSocketUrl;
-    this.numberOfParticipants = 0L;
   }
 
   /**
@@ -80,4 +81,13 @@ public class WebSocketServerNode {
   public Key<WebSocketServerNode> getKey() {
     return getKeyFromWebSocketUrl(this.webSocketUrl);
   }
+
+  /**
+   * Returns the websocket URL of this server node.
+   *
+   * @return the websocket URL of this server node.
+   */
+  public String getWebSocketUrl() {
+    return webSocketUrl;
+  }
 }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.Gson;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of the propagate batches sent between websocket server nodes, which
+ * is used instead of PropagateBatchMessage when both ends agree on {@link #SUBPROTOCOL} in the
+ * websocket handshake.
+ *
+ * <p>A frame starts with the format version and the number of the messages, followed by the
+ * messages in order. Every message is encoded as follows.</p>
+ * <ul>
+ *   <li>The wire code of its MessageType in a single byte, see {@link #getTypeCode}. The codes
+ *   are assigned explicitly, so that reordering or adding the MessageTypes never changes the
+ *   meaning of a frame.</li>
+ *   <li>A room reference: 0 followed by the name of the chat room for a chat room which is not
+ *   interned, the next unused id followed by the name of the chat room for interning a new chat
+ *   room, or the id of an already interned chat room. At most {@link #MAX_ROOMS} chat rooms are
+ *   interned per connection.</li>
+ *   <li>The name and the contents of the message.</li>
+ * </ul>
+ * <p>Integers are encoded as unsigned varints, and strings as a varint of the length of the
+ * UTF-8 bytes plus one followed by the bytes, where 0 stands for null. A message which is not a
+ * ChatMessage is encoded as a PROPAGATE message with its JSON as the contents.</p>
+ *
+ * <p>When both ends agree on {@link #DEFLATE_SUBPROTOCOL} instead, a frame may also be sent
+ * compressed: {@link #DEFLATED_FRAME} followed by the whole frame above compressed with raw
+ * DEFLATE. The compression is applied after the encoding, so it is left to the transport.</p>
+ *
+ * <p>The room dictionary lives as long as the connection, so an Encoder and a Decoder must be
+ * created for every connection and must not be shared between connections.</p>
+ */
+public class BinaryPropagateCodec {
+
+  /**
+   * The websocket subprotocol that a server node offers and accepts for this encoding.
+   */
+  public static final String SUBPROTOCOL = "websocketchat-binary-1";
+
+  /**
+   * The websocket subprotocol for this encoding with the optional compression of the frames.
+   */
+  public static final String DEFLATE_SUBPROTOCOL = "websocketchat-binary-deflate-1";
+
+  /**
+   * The first byte of a compressed frame, which never collides with the format version.
+   */
+  public static final byte DEFLATED_FRAME = (byte) 0xDF;
+
+  /**
+   * The name of the handshake header which carries the websocket subprotocol.
+   */
+  public static final String SUBPROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+
+  private static final byte VERSION = 1;
+
+  /*
+   * The capacity of the room dictionary of a connection. Both ends must agree on it to assign the
+   * same ids, so it is part of the protocol and changes only with the subprotocol names.
+   */
+  @VisibleForTesting
+  static final int MAX_ROOMS = 10000;
+
+  /* The wire code of every MessageType. A code must never be reused for another MessageType. */
+  private static final Map<OutgoingMessage.MessageType, Byte> TYPE_CODES =
+      new EnumMap<>(OutgoingMessage.MessageType.class);
+
+  /* The MessageType of every wire code, null for the unassigned codes. */
+  private static final OutgoingMessage.MessageType[] TYPES_BY_CODE =
+      new OutgoingMessage.MessageType[Byte.MAX_VALUE + 1];
+
+  static {
+    // The codes of the first version, which happen to match the order of the MessageTypes then.
+    assignTypeCode(OutgoingMessage.MessageType.MESSAGE, 0);
+    assignTypeCode(OutgoingMessage.MessageType.PARTICIPANTS, 1);
+    assignTypeCode(OutgoingMessage.MessageType.PARTICIPANTS_DELTA, 2);
+    assignTypeCode(OutgoingMessage.MessageType.SYSTEM, 3);
+    assignTypeCode(OutgoingMessage.MessageType.ENTER, 4);
+    assignTypeCode(OutgoingMessage.MessageType.LEAVE, 5);
+    assignTypeCode(OutgoingMessage.MessageType.PROPAGATE, 6);
+    assignTypeCode(OutgoingMessage.MessageType.NODE_JOIN, 7);
+    assignTypeCode(OutgoingMessage.MessageType.NODE_LEAVE, 8);
+    assignTypeCode(OutgoingMessage.MessageType.ROOM_SUBSCRIBE, 9);
+    assignTypeCode(OutgoingMessage.MessageType.ROOM_UNSUBSCRIBE, 10);
+  }
+
+  private BinaryPropagateCodec() {}
+
+  private static void assignTypeCode(OutgoingMessage.MessageType type, int code) {
+    if (TYPES_BY_CODE[code] != null) {
+      throw new IllegalStateException("Duplicate wire code: " + code);
+    }
+    TYPE_CODES.put(type, (byte) code);
+    TYPES_BY_CODE[code] = type;
+  }
+
+  /**
+   * Returns the wire code of the given MessageType.
+   *
+   * @param type a MessageType.
+   * @return the wire code of the given MessageType.
+   * @throws IllegalArgumentException when the MessageType has no wire code.
+   */
+  static byte getTypeCode(OutgoingMessage.MessageType type) {
+    Byte code = TYPE_CODES.get(type);
+    if (code == null) {
+      throw new IllegalArgumentException("No wire code for the message type: " + type);
+    }
+    return code;
+  }
+
+  /**
+   * Returns the MessageType of the given wire code.
+   *
+   * @param code a wire code.
+   * @return the MessageType of the given wire code.
+   * @throws IllegalArgumentException when the wire code is unknown.
+   */
+  static OutgoingMessage.MessageType getType(byte code) {
+    OutgoingMessage.MessageType type = code < 0 ? null : TYPES_BY_CODE[code];
+    if (type == null) {
+      throw new IllegalArgumentException("Unknown message type: " + code);
+    }
+    return type;
+  }
+
+  /**
+   * Returns whether or not the given value of the subprotocol header offers the given
+   * subprotocol.
+   *
+   * @param subprotocols the comma separated subprotocols in the handshake, may be null.
+   * @param subprotocol either {@link #SUBPROTOCOL} or {@link #DEFLATE_SUBPROTOCOL}.
+   * @return whether or not the given value of the subprotocol header offers the subprotocol.
+   */
+  public static boolean isOffered(String subprotocols, String subprotocol) {
+    if (subprotocols == null) {
+      return false;
+    }
+    for (String offered : subprotocols.split(",")) {
+      if (offered.trim().equals(subprotocol)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * An encoder for the sending end of a single connection.
+   */
+  public static class Encoder {
+
+    private final Gson gson;
+
+    private final Map<String, Integer> roomIds;
+
+    private byte[] buffer;
+
+    private int position;
+
+    /**
+     * Creates an Encoder with an empty room dictionary.
+     *
+     * @param gson a Gson object for serializing the messages which are not a ChatMessage.
+     */
+    public Encoder(Gson gson) {
+      this.gson = gson;
+      this.roomIds = new HashMap<>();
+      this.buffer = new byte[256];
+    }
+
+    /**
+     * Encodes the given messages into a single frame, interning the new chat rooms.
+     *
+     * @param messages the original messages to propagate, in order.
+     * @return the encoded frame.
+     */
+    public byte[] encode(List<? extends OutgoingMessage> messages) {
+      position = 0;
+      writeByte(VERSION);
+      writeVarint(messages.size());
+      for (OutgoingMessage message : messages) {
+        if (message instanceof ChatMessage) {
+          ChatMessage chatMessage = (ChatMessage) message;
+          writeByte(getTypeCode(chatMessage.getType()));
+          writeRoom(chatMessage.getRoom());
+          writeString(chatMessage.getName());
+          writeString(chatMessage.getMessage());
+        } else {
+          writeByte(getTypeCode(OutgoingMessage.MessageType.PROPAGATE));
+          writeRoom(message.getRoom());
+          writeString(null);
+          writeString(message.toJson(gson));
+        }
+      }
+      return Arrays.copyOf(buffer, position);
+    }
+
+    private void writeRoom(String room) {
+      Integer roomId = room == null ? null : roomIds.get(room);
+      if (roomId != null) {
+        writeVarint(roomId);
+      } else if (room != null && roomIds.size() < MAX_ROOMS) {
+        roomId = roomIds.size() + 1;
+        roomIds.put(room, roomId);
+        writeVarint(roomId);
+        writeString(room);
+      } else {
+        writeVarint(0);
+        writeString(room);
+      }
+    }
+
+    private void writeString(String value) {
+      if (value == null) {
+        writeVarint(0);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(bytes.length + 1);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    private void writeVarint(int value) {
+      ensureCapacity(5);
+      while ((value & ~0x7F) != 0) {
+        buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeByte(byte value) {
+      ensureCapacity(1);
+      buffer[position++] = value;
+    }
+
+    private void ensureCapacity(int length) {
+      if (position + length > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+      }
+    }
+  }
+
+  /**
+   * A decoder for the receiving end of a single connection.
+   */
+  public static class Decoder {
+
+    private final Gson gson;
+
+    private final List<String> rooms;
+
+    /**
+     * Creates a Decoder with an empty room dictionary.
+     *
+     * @param gson a Gson object for serializing the decoded messages for the clients.
+     */
+    public Decoder(Gson gson) {
+      this.gson = gson;
+      this.rooms = new ArrayList<>();
+    }
+
+    /**
+     * Decodes a frame into the propagate messages, interning the new chat rooms.
+     *
+     * @param frame an encoded frame.
+     * @return the PropagatedMessages, in order.
+     * @throws IllegalArgumentException when the frame is malformed.
+     */
+    public List<PropagatedMessage> decode(ByteBuffer frame) {
+      try {
+        byte version = frame.get();
+        if (version != VERSION) {
+          throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+        int size = readVarint(frame);
+        List<PropagatedMessage> messages = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+          OutgoingMessage.MessageType type = getType(frame.get());
+          String room = readRoom(frame);
+          String name = readString(frame);
+          String message = readString(frame);
+          if (type.equals(OutgoingMessage.MessageType.PROPAGATE)) {
+            messages.add(PropagatedMessage.fromPayload(room, message));
+          } else {
+            messages.add(PropagatedMessage.fromOriginal(
+                new ChatMessage(type, name, room, message), gson));
+          }
+        }
+        return messages;
+      } catch (BufferUnderflowException e) {
+        throw new IllegalArgumentException("Truncated frame.", e);
+      }
+    }
+
+    private String readRoom(ByteBuffer frame) {
+      int roomId = readVarint(frame);
+      if (roomId == 0) {
+        return readString(frame);
+      }
+      if (roomId == rooms.size() + 1 && rooms.size() < MAX_ROOMS) {
+        rooms.add(readString(frame));
+      } else if (roomId < 0 || roomId > rooms.size()) {
+        throw new IllegalArgumentException("Unknown room id: " + roomId);
+      }
+      return rooms.get(roomId - 1);
+    }
+
+    private String readString(ByteBuffer frame) {
+      int length = readVarint(frame) - 1;
+      if (length < 0) {
+        return null;
+      }
+      if (length > frame.remaining()) {
+        throw new IllegalArgumentException("Truncated string.");
+      }
+      String value;
+      if (frame.hasArray()) {
+        value = new String(frame.array(), frame.arrayOffset() + frame.position(), length,
+            StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+      } else {
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        value = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return value;
+    }
+
+    private int readVarint(ByteBuffer frame) {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        byte b = frame.get();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint.");
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+/**
+ * A message sent directly between websocket server nodes for announcing that a server node
+ * joined or left, so that the others don't have to wait for the next datastore query.
+ */
+public class NodeAnnouncementMessage {
+
+  private OutgoingMessage.MessageType type;
+
+  private String webSocketUrl;
+
+  /**
+   * Returns a message announcing that the given server node joined.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @return a NodeAnnouncementMessage with {@code MessageType = MessageType.NODE_JOIN}.
+   */
+  public static NodeAnnouncementMessage join(String webSocketUrl) {
+    return new NodeAnnouncementMessage(OutgoingMessage.MessageType.NODE_JOIN, webSocketUrl);
+  }
+
+  /**
+   * Returns a message announcing that the given server node left.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @return a NodeAnnouncementMessage with {@code MessageType = MessageType.NODE_LEAVE}.
+   */
+  public static NodeAnnouncementMessage leave(String webSocketUrl) {
+    return new NodeAnnouncementMessage(OutgoingMessage.MessageType.NODE_LEAVE, webSocketUrl);
+  }
+
+  private NodeAnnouncementMessage(OutgoingMessage.MessageType type, String webSocketUrl) {
+    this.type = type;
+    this.webSocketUrl = webSocketUrl;
+  }
+
+  /**
+   * Returns the type of this message.
+   *
+   * @return either {@code MessageType.NODE_JOIN} or {@code MessageType.NODE_LEAVE}.
+   */
+  public OutgoingMessage.MessageType getType() {
+    return type;
+  }
+
+  /**
+   * Returns the websocket URL of the server node which joined or left.
+   *
+   * @return the websocket URL of the server node which joined or left.
+   */
+  public String getWebSocketUrl() {
+    return webSocketUrl;
+  }
+}
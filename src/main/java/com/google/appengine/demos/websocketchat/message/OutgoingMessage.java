@@ -32,6 +32,9 @@ public interface OutgoingMessage {
     /** A message for notifying the participant list. */
     PARTICIPANTS,
 
+    /** A message for notifying the changes of the participant list since the last version. */
+    PARTICIPANTS_DELTA,
+
     /** A system message. */
     SYSTEM,
 
@@ -42,7 +45,19 @@ public interface OutgoingMessage {
     LEAVE,
 
     /** A special message for propagating various message between multiple server nodes. */
-    PROPAGATE
+    PROPAGATE,
+
+    /** A special message for announcing that a server node joined. */
+    NODE_JOIN,
+
+    /** A special message for announcing that a server node left. */
+    NODE_LEAVE,
+
+    /** A special message for announcing that a server node started hosting a chat room. */
+    ROOM_SUBSCRIBE,
+
+    /** A special message for announcing that a server node stopped hosting a chat room. */
+    ROOM_UNSUBSCRIBE
   }
   /**
    * Returns the type of this message.
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
+
+import java.util.Set;
+
+/**
+ * A message for notifying the changes of the participant list of the chat room.
+ *
+ * <p>The clients apply the changes to the participant list of the previous version. When the
+ * version of the client's participant list is not {@code version - 1}, the client should request
+ * the full participant list.</p>
+ */
+public class ParticipantDeltaMessage implements OutgoingMessage {
+
+  private MessageType type;
+
+  private String room;
+
+  private long version;
+
+  private Set<String> added;
+
+  private Set<String> removed;
+
+  /**
+   * Returns a ParticipantDeltaMessage that represents the changes between the given participant
+   * lists.
+   *
+   * @param previous the participant list of the previous version.
+   * @param current the participant list of the current version.
+   * @return a ParticipantDeltaMessage with the version of the current participant list.
+   */
+  public static ParticipantDeltaMessage between(ParticipantListMessage previous,
+      ParticipantListMessage current) {
+    return new ParticipantDeltaMessage(current.getRoom(), current.getVersion(),
+        Sets.difference(current.getParticipantSet(), previous.getParticipantSet()),
+        Sets.difference(previous.getParticipantSet(), current.getParticipantSet()));
+  }
+
+  /**
+   * Creates a ParticipantDeltaMessage instance with the given parameters.
+   *
+   * @param room a name of the chat room.
+   * @param version a version of the participant list after applying the changes.
+   * @param added a set of the names of the participants who entered the chat room.
+   * @param removed a set of the names of the participants who left the chat room.
+   */
+  public ParticipantDeltaMessage(String room, long version, Set<String> added,
+      Set<String> removed) {
+    this.type = MessageType.PARTICIPANTS_DELTA;
+    this.room = room;
+    this.version = version;
+    this.added = ImmutableSet.copyOf(added);
+    this.removed = ImmutableSet.copyOf(removed);
+  }
+
+  @Override
+  public MessageType getType() {
+    return type;
+  }
+
+  @Override
+  public String toJson(Gson gson) {
+    return gson.toJson(this);
+  }
+
+  @Override
+  public boolean shouldSendTo(String room) {
+    return this.room.equals(room);
+  }
+
+  @Override
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * Returns the version of the participant list after applying the changes.
+   *
+   * @return the version of the participant list after applying the changes.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns whether or not this message contains any changes.
+   *
+   * @return whether or not this message contains any changes.
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty();
+  }
+
+  /**
+   * Returns the set of the names of the participants who entered the chat room.
+   *
+   * @return the set of the names of the participants who entered the chat room.
+   */
+  public Set<String> getAdded() {
+    return added;
+  }
+
+  /**
+   * Returns the set of the names of the participants who left the chat room.
+   *
+   * @return the set of the names of the participants who left the chat room.
+   */
+  public Set<String> getRemoved() {
+    return removed;
+  }
+}
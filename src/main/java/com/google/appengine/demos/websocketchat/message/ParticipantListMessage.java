@@ -23,6 +23,10 @@ import java.util.Set;
 
 /**
  * A message for notifying the participant list of the chat room.
+ *
+ * <p>Each snapshot of the participant list has a version, which is incremented every time the
+ * participant list changes. The changes between two versions are notified with
+ * {@link ParticipantDeltaMessage}.</p>
  */
 public class ParticipantListMessage implements OutgoingMessage {
 
@@ -32,6 +36,8 @@ public class ParticipantListMessage implements OutgoingMessage {
 
   private Set<String> participantSet;
 
+  private long version;
+
   /**
    * Creates a ParticipantListMessage instance with the given parameters.
    *
@@ -39,9 +45,21 @@ public class ParticipantListMessage implements OutgoingMessage {
    * @param participantSet a set of the names of the participants.
    */
   public ParticipantListMessage(String room, Set<String> participantSet) {
+    this(room, participantSet, 0L);
+  }
+
+  /**
+   * Creates a ParticipantListMessage instance with the given parameters.
+   *
+   * @param room a name of the chat room.
+   * @param participantSet a set of the names of the participants.
+   * @param version a version of the participant list.
+   */
+  public ParticipantListMessage(String room, Set<String> participantSet, long version) {
     this.type = MessageType.PARTICIPANTS;
     this.room = room;
     this.participantSet = ImmutableSet.copyOf(participantSet);
+    this.version = version;
   }
 
   @Override
@@ -72,4 +90,13 @@ public class ParticipantListMessage implements OutgoingMessage {
   public Set<String> getParticipantSet() {
     return participantSet;
   }
+
+  /**
+   * Returns the version of the participant list.
+   *
+   * @return the version of the participant list.
+   */
+  public long getVersion() {
+    return version;
+  }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An envelope that carries multiple propagate messages between websocket server nodes in a
+ * single websocket frame.
+ *
+ * <p>The wrapped messages are kept in the order they are added, so the receiver can deliver
+ * them to the local clients in the same order.</p>
+ *
+ * <p>The receiver reads a batch with {@link #readMessages(String)} in a single pass, instead of
+ * building the whole JSON tree and then binding it to the wrapped messages.</p>
+ */
+public class PropagateBatchMessage {
+
+  private static final String TYPE_PROPERTY = "type";
+
+  private static final String ROOM_PROPERTY = "room";
+
+  private static final String MESSAGE_PROPERTY = "message";
+
+  private static final String MESSAGES_PROPERTY = "messages";
+
+  private OutgoingMessage.MessageType type;
+
+  private List<ChatMessage> messages;
+
+  /**
+   * Reads the wrapped messages of the given serialized PropagateBatchMessage in a single pass,
+   * decoding only the header of each wrapped message.
+   *
+   * <p>A PropagateBatchMessage is serialized with the type first, so any other message is told
+   * apart by its first property and rejected without reading the rest of it.</p>
+   *
+   * @param rawMessage a raw message received from a client or another server node.
+   * @return the wrapped messages in order, or null when the given message is not a
+   *         PropagateBatchMessage.
+   * @throws IllegalArgumentException when the given message is not a JSON object, or is a
+   *         malformed batch.
+   */
+  public static List<PropagatedMessage> readMessages(String rawMessage) {
+    try (JsonReader reader = new JsonReader(new StringReader(rawMessage))) {
+      reader.beginObject();
+      if (! reader.hasNext() || ! reader.nextName().equals(TYPE_PROPERTY)
+          || reader.peek() != JsonToken.STRING
+          || ! reader.nextString().equals(OutgoingMessage.MessageType.PROPAGATE.name())
+          || ! reader.hasNext() || ! reader.nextName().equals(MESSAGES_PROPERTY)) {
+        return null;
+      }
+      List<PropagatedMessage> propagatedMessages = new ArrayList<>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        propagatedMessages.add(readMessage(reader));
+      }
+      reader.endArray();
+      return propagatedMessages;
+    } catch (IOException | IllegalStateException e) {
+      throw new IllegalArgumentException("Malformed message: " + rawMessage, e);
+    }
+  }
+
+  private static PropagatedMessage readMessage(JsonReader reader) throws IOException {
+    String room = null;
+    String payload = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String property = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if (property.equals(ROOM_PROPERTY)) {
+        room = reader.nextString();
+      } else if (property.equals(MESSAGE_PROPERTY)) {
+        payload = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return PropagatedMessage.fromPayload(room, payload);
+  }
+
+  /**
+   * Creates an empty PropagateBatchMessage.
+   */
+  public PropagateBatchMessage() {
+    this.type = OutgoingMessage.MessageType.PROPAGATE;
+    this.messages = new ArrayList<>();
+  }
+
+  /**
+   * Adds a propagate message to this batch.
+   *
+   * @param propagateMessage a ChatMessage with {@code MessageType = MessageType.PROPAGATE}.
+   */
+  public void add(ChatMessage propagateMessage) {
+    messages.add(propagateMessage);
+  }
+
+  /**
+   * Returns the wrapped propagate messages in the order they were added.
+   *
+   * @return the wrapped propagate messages in the order they were added.
+   */
+  public List<ChatMessage> getMessages() {
+    if (messages == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(messages);
+  }
+
+  /**
+   * Returns the number of the wrapped propagate messages.
+   *
+   * @return the number of the wrapped propagate messages.
+   */
+  public int size() {
+    return messages == null ? 0 : messages.size();
+  }
+}
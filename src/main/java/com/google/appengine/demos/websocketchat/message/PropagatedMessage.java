@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * A message propagated from another server node, which is delivered to the local clients as is.
+ *
+ * <p>Only the header of the original message, that is the type and the name, is decoded, and the
+ * serialized original message is sent to the clients without any further Gson work. The header
+ * is read from the beginning of the serialized message and the reading stops as soon as the
+ * header is complete, so the contents of the message are never parsed.</p>
+ */
+public class PropagatedMessage implements OutgoingMessage {
+
+  private final MessageType originalType;
+
+  private final String name;
+
+  private final String room;
+
+  private final ChatMessage original;
+
+  private final Gson gson;
+
+  private volatile String payload;
+
+  /**
+   * Returns a PropagatedMessage for the given serialized original message, reading only its
+   * header.
+   *
+   * @param room a name of the chat room that the message belongs to.
+   * @param payload the serialized original message.
+   * @return a PropagatedMessage for the given serialized original message.
+   * @throws IllegalArgumentException when the header of the payload is malformed.
+   */
+  public static PropagatedMessage fromPayload(String room, String payload) {
+    MessageType originalType = null;
+    String name = null;
+    try (JsonReader reader = new JsonReader(new StringReader(payload))) {
+      reader.beginObject();
+      while (reader.hasNext() && (originalType == null || name == null)) {
+        String property = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+        } else if (property.equals("type")) {
+          originalType = MessageType.valueOf(reader.nextString());
+        } else if (property.equals("name")) {
+          name = reader.nextString();
+        } else if (property.equals("message")) {
+          // The header precedes the contents, no need to read further.
+          break;
+        } else {
+          reader.skipValue();
+        }
+      }
+    } catch (IOException | IllegalStateException e) {
+      throw new IllegalArgumentException("Malformed propagated message: " + payload, e);
+    }
+    return new PropagatedMessage(originalType, name, room, null, null, payload);
+  }
+
+  /**
+   * Returns a PropagatedMessage for the given original message, which is serialized only when it
+   * is sent to the clients for the first time.
+   *
+   * @param original the original message decoded from another server node.
+   * @param gson a Gson object for serializing the original message.
+   * @return a PropagatedMessage for the given original message.
+   */
+  public static PropagatedMessage fromOriginal(ChatMessage original, Gson gson) {
+    return new PropagatedMessage(original.getType(), original.getName(), original.getRoom(),
+        original, gson, null);
+  }
+
+  private PropagatedMessage(MessageType originalType, String name, String room,
+                            ChatMessage original, Gson gson, String payload) {
+    this.originalType = originalType;
+    this.name = name;
+    this.room = room;
+    this.original = original;
+    this.gson = gson;
+    this.payload = payload;
+  }
+
+  @Override
+  public MessageType getType() {
+    return MessageType.PROPAGATE;
+  }
+
+  /**
+   * Returns the type of the original message.
+   *
+   * @return the type of the original message, or null when the original message has no type.
+   */
+  public MessageType getOriginalType() {
+    return originalType;
+  }
+
+  /**
+   * Returns the name of the owner of the original message.
+   *
+   * @return the name of the owner of the original message, may be null.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the serialized original message, regardless of the given Gson object.
+   *
+   * @param gson not used.
+   * @return the serialized original message.
+   */
+  @Override
+  public String toJson(Gson gson) {
+    String result = payload;
+    if (result == null) {
+      // A benign race, both threads produce the same payload.
+      result = this.gson.toJson(original);
+      payload = result;
+    }
+    return result;
+  }
+
+  @Override
+  public boolean shouldSendTo(String room) {
+    return this.room.equals(room);
+  }
+
+  @Override
+  public String getRoom() {
+    return room;
+  }
+}
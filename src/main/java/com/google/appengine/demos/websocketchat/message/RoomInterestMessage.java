@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+/**
+ * A message sent directly between websocket server nodes for announcing that a server node
+ * started or stopped hosting a chat room, so that the others propagate the messages of the chat
+ * room only to the server nodes which have participants in it.
+ */
+public class RoomInterestMessage {
+
+  private OutgoingMessage.MessageType type;
+
+  private String room;
+
+  private String webSocketUrl;
+
+  /**
+   * Returns a message announcing that the given server node started hosting the given chat room.
+   *
+   * @param room a name of the chat room.
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @return a RoomInterestMessage with {@code MessageType = MessageType.ROOM_SUBSCRIBE}.
+   */
+  public static RoomInterestMessage subscribe(String room, String webSocketUrl) {
+    return new RoomInterestMessage(OutgoingMessage.MessageType.ROOM_SUBSCRIBE, room,
+        webSocketUrl);
+  }
+
+  /**
+   * Returns a message announcing that the given server node stopped hosting the given chat room.
+   *
+   * @param room a name of the chat room.
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @return a RoomInterestMessage with {@code MessageType = MessageType.ROOM_UNSUBSCRIBE}.
+   */
+  public static RoomInterestMessage unsubscribe(String room, String webSocketUrl) {
+    return new RoomInterestMessage(OutgoingMessage.MessageType.ROOM_UNSUBSCRIBE, room,
+        webSocketUrl);
+  }
+
+  private RoomInterestMessage(OutgoingMessage.MessageType type, String room,
+                              String webSocketUrl) {
+    this.type = type;
+    this.room = room;
+    this.webSocketUrl = webSocketUrl;
+  }
+
+  /**
+   * Returns the type of this message.
+   *
+   * @return either {@code MessageType.ROOM_SUBSCRIBE} or {@code MessageType.ROOM_UNSUBSCRIBE}.
+   */
+  public OutgoingMessage.MessageType getType() {
+    return type;
+  }
+
+  /**
+   * Returns the name of the chat room.
+   *
+   * @return the name of the chat room.
+   */
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * Returns the websocket URL of the server node which started or stopped hosting the chat room.
+   *
+   * @return the websocket URL of the server node.
+   */
+  public String getWebSocketUrl() {
+    return webSocketUrl;
+  }
+}
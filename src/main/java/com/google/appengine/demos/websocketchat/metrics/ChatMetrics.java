@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.metrics;
+
+import com.google.appengine.demos.websocketchat.message.OutgoingMessage;
+
+/**
+ * The metrics of the chat server, exposed by the MetricsServlet in the Prometheus text format.
+ *
+ * <p>The counters and the histograms here are recorded on the hot paths, so they are plain
+ * atomic operations. The gauges, such as the depth of the queues, are registered by the
+ * ChatServerBridge and read only when the metrics are scraped.</p>
+ */
+public final class ChatMetrics {
+
+  /**
+   * The registry of every metric of this server node.
+   */
+  public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+  /**
+   * The number of the messages received from the clients and the other server nodes, by the
+   * type. The messages wrapped in a propagate batch are counted as PROPAGATE.
+   */
+  public static final EnumCounter<OutgoingMessage.MessageType> MESSAGES_RECEIVED =
+      REGISTRY.register(new EnumCounter<>("websocketchat_messages_received_total",
+          "Messages received by type.", "type", OutgoingMessage.MessageType.class));
+
+  /**
+   * The time from receiving a frame to handing the last message in it to the outbound queues of
+   * the local clients.
+   */
+  public static final LatencyHistogram LOCAL_DELIVERY_LATENCY =
+      REGISTRY.register(new LatencyHistogram("websocketchat_local_delivery_latency_seconds",
+          "Time from receiving a frame to the last send to the local clients."));
+
+  /**
+   * The time from queueing a message for propagation to sending the batch containing it to
+   * another server node, measured for the oldest message of every batch.
+   */
+  public static final LatencyHistogram PEER_DELIVERY_LATENCY =
+      REGISTRY.register(new LatencyHistogram("websocketchat_peer_delivery_latency_seconds",
+          "Time from queueing the oldest message of a batch to sending it to a server node."));
+
+  /**
+   * The latency of the datastore calls, by the operation. The count of each operation is the
+   * number of the calls.
+   */
+  public static final LatencyHistogram DATASTORE_LATENCY =
+      REGISTRY.register(new LatencyHistogram("websocketchat_datastore_latency_seconds",
+          "Latency of the datastore calls by operation.", "operation"));
+
+  public static final LatencyHistogram.Child DATASTORE_SAVE_PARTICIPANTS =
+      DATASTORE_LATENCY.labels("saveParticipants");
+
+  public static final LatencyHistogram.Child DATASTORE_LOAD_PARTICIPANTS =
+      DATASTORE_LATENCY.labels("loadParticipants");
+
+  public static final LatencyHistogram.Child DATASTORE_DELETE_PARTICIPANTS =
+      DATASTORE_LATENCY.labels("deleteParticipants");
+
+  public static final LatencyHistogram.Child DATASTORE_LOAD_ROUTES =
+      DATASTORE_LATENCY.labels("loadRoutes");
+
+  public static final LatencyHistogram.Child DATASTORE_SAVE_SERVER_NODE =
+      DATASTORE_LATENCY.labels("saveServerNode");
+
+  public static final LatencyHistogram.Child DATASTORE_LOAD_SERVER_NODES =
+      DATASTORE_LATENCY.labels("loadServerNodes");
+
+  public static final LatencyHistogram.Child DATASTORE_DELETE_SERVER_NODE =
+      DATASTORE_LATENCY.labels("deleteServerNode");
+
+  private ChatMetrics() {
+  }
+}
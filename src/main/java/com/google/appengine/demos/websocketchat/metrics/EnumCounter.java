@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter with a label whose values are the constants of an enum.
+ *
+ * <p>Every constant has its own slot, so {@link #increment(Enum)} is a single atomic increment
+ * without any lookup or allocation.</p>
+ *
+ * @param <E> the enum type of the label.
+ */
+public class EnumCounter<E extends Enum<E>> implements Metric {
+
+  private final String name;
+
+  private final String help;
+
+  private final String labelName;
+
+  private final E[] constants;
+
+  private final AtomicLongArray counts;
+
+  /**
+   * Creates an EnumCounter with all the counts being zero.
+   *
+   * @param name a name of the counter, which should end with "_total".
+   * @param help a description of the counter.
+   * @param labelName a name of the label.
+   * @param enumType the enum type of the label.
+   */
+  public EnumCounter(String name, String help, String labelName, Class<E> enumType) {
+    this.name = name;
+    this.help = help;
+    this.labelName = labelName;
+    this.constants = enumType.getEnumConstants();
+    this.counts = new AtomicLongArray(constants.length);
+  }
+
+  /**
+   * Increments the count for the given constant.
+   *
+   * @param constant a value of the label.
+   */
+  public void increment(E constant) {
+    counts.incrementAndGet(constant.ordinal());
+  }
+
+  @Override
+  public void writeTo(StringBuilder out) {
+    MetricsRegistry.writeHeader(out, name, help, "counter");
+    for (E constant : constants) {
+      MetricsRegistry.writeSample(out, name, labelName, constant.name(),
+          counts.get(constant.ordinal()));
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A metric whose samples are collected from the application state when the metrics are
+ * scraped, such as the depth of a queue. Nothing is recorded on the hot paths.
+ */
+public abstract class Gauge implements Metric {
+
+  private final String name;
+
+  private final String help;
+
+  private final String type;
+
+  private final String labelName;
+
+  /**
+   * Creates a Gauge.
+   *
+   * @param name a name of the metric.
+   * @param help a description of the metric.
+   * @param type either "gauge", or "counter" for a monotonic value kept by the application.
+   * @param labelName a name of the label, or null for a metric without a label.
+   */
+  protected Gauge(String name, String help, String type, String labelName) {
+    this.name = name;
+    this.help = help;
+    this.type = type;
+    this.labelName = labelName;
+  }
+
+  /**
+   * Collects the current samples.
+   *
+   * @param samples a map to put the samples, keyed by the value of the label, or by null for a
+   *                metric without a label.
+   */
+  protected abstract void collect(Map<String, Number> samples);
+
+  @Override
+  public void writeTo(StringBuilder out) {
+    Map<String, Number> samples = new LinkedHashMap<>();
+    collect(samples);
+    MetricsRegistry.writeHeader(out, name, help, type);
+    for (Map.Entry<String, Number> sample : samples.entrySet()) {
+      MetricsRegistry.writeSample(out, name, labelName, sample.getKey(),
+          sample.getValue().doubleValue());
+    }
+  }
+
+  /**
+   * Returns a Gauge with a single sample without a label.
+   *
+   * @param name a name of the metric.
+   * @param help a description of the metric.
+   * @param type either "gauge", or "counter" for a monotonic value kept by the application.
+   * @param value the source of the value.
+   * @return a Gauge with a single sample without a label.
+   */
+  public static Gauge of(String name, String help, String type, final Value value) {
+    return new Gauge(name, help, type, null) {
+      @Override
+      protected void collect(Map<String, Number> samples) {
+        samples.put(null, value.get());
+      }
+    };
+  }
+
+  /**
+   * The source of the value of a Gauge without a label.
+   */
+  public interface Value {
+
+    /**
+     * Returns the current value.
+     *
+     * @return the current value.
+     */
+    Number get();
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, optionally split by a label.
+ *
+ * <p>The buckets are the powers of two in microseconds, from 1us to about 67s, so the bucket of
+ * an observation is found with a single bit operation. Recording an observation is two atomic
+ * additions without any lock or allocation, which is cheap enough for the hot paths.</p>
+ */
+public class LatencyHistogram implements Metric {
+
+  private static final int BUCKETS = 27;
+
+  /**
+   * The observations of a single value of the label.
+   */
+  public static class Child {
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong sumNanos;
+
+    Child() {
+      counts = new AtomicLongArray(BUCKETS + 1);
+      sumNanos = new AtomicLong();
+    }
+
+    /**
+     * Records an observation.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    public void observeNanos(long nanos) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+      int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+      counts.incrementAndGet(Math.min(bucket, BUCKETS));
+      sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given time.
+     *
+     * @param startNanos a value of {@link System#nanoTime()} when the operation started.
+     */
+    public void observeSince(long startNanos) {
+      observeNanos(System.nanoTime() - startNanos);
+    }
+  }
+
+  private final String name;
+
+  private final String help;
+
+  private final String labelName;
+
+  private final ConcurrentMap<String, Child> children;
+
+  private final Child unlabeled;
+
+  /**
+   * Creates a LatencyHistogram without a label.
+   *
+   * @param name a name of the histogram, which should end with "_seconds".
+   * @param help a description of the histogram.
+   */
+  public LatencyHistogram(String name, String help) {
+    this(name, help, null);
+  }
+
+  /**
+   * Creates a LatencyHistogram split by the given label.
+   *
+   * @param name a name of the histogram, which should end with "_seconds".
+   * @param help a description of the histogram.
+   * @param labelName a name of the label, or null for a histogram without a label.
+   */
+  public LatencyHistogram(String name, String help, String labelName) {
+    this.name = name;
+    this.help = help;
+    this.labelName = labelName;
+    this.children = new ConcurrentHashMap<>();
+    this.unlabeled = labelName == null ? new Child() : null;
+  }
+
+  /**
+   * Records an observation for a histogram without a label.
+   *
+   * @param nanos the latency in nanoseconds.
+   */
+  public void observeNanos(long nanos) {
+    unlabeled.observeNanos(nanos);
+  }
+
+  /**
+   * Records the time elapsed since the given time for a histogram without a label.
+   *
+   * @param startNanos a value of {@link System#nanoTime()} when the operation started.
+   */
+  public void observeSince(long startNanos) {
+    unlabeled.observeSince(startNanos);
+  }
+
+  /**
+   * Returns the observations of the given value of the label. The callers on the hot paths
+   * should keep the returned object, rather than looking it up every time.
+   *
+   * @param labelValue a value of the label.
+   * @return the observations of the given value of the label.
+   */
+  public Child labels(String labelValue) {
+    Child child = children.get(labelValue);
+    if (child == null) {
+      Child newChild = new Child();
+      child = children.putIfAbsent(labelValue, newChild);
+      if (child == null) {
+        child = newChild;
+      }
+    }
+    return child;
+  }
+
+  @Override
+  public void writeTo(StringBuilder out) {
+    MetricsRegistry.writeHeader(out, name, help, "histogram");
+    if (unlabeled != null) {
+      writeChild(out, null, unlabeled);
+    }
+    for (ConcurrentMap.Entry<String, Child> entry : children.entrySet()) {
+      writeChild(out, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void writeChild(StringBuilder out, String labelValue, Child child) {
+    long cumulativeCount = 0;
+    for (int i = 0; i <= BUCKETS; i++) {
+      cumulativeCount += child.counts.get(i);
+      out.append(name).append("_bucket{");
+      if (labelName != null) {
+        out.append(labelName).append("=\"").append(labelValue).append("\",");
+      }
+      out.append("le=\"");
+      if (i == BUCKETS) {
+        out.append("+Inf");
+      } else {
+        out.append((1L << i) / 1e6);
+      }
+      out.append("\"} ").append(cumulativeCount).append('\n');
+    }
+    double sumSeconds = child.sumNanos.get() / 1e9;
+    MetricsRegistry.writeSample(out, name + "_sum", labelName, labelValue, sumSeconds);
+    MetricsRegistry.writeSample(out, name + "_count", labelName, labelValue, cumulativeCount);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.metrics;
+
+/**
+ * A metric which can be exposed in the Prometheus text format.
+ */
+public interface Metric {
+
+  /**
+   * Appends the HELP and TYPE lines and the samples of this metric in the Prometheus text
+   * format.
+   *
+   * @param out a buffer to append to.
+   */
+  void writeTo(StringBuilder out);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A registry of the metrics exposed by this server node.
+ */
+public class MetricsRegistry {
+
+  private final List<Metric> metrics;
+
+  /**
+   * Creates an empty MetricsRegistry.
+   */
+  public MetricsRegistry() {
+    metrics = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Registers the given metric.
+   *
+   * @param metric a metric to expose.
+   * @param <T> the type of the metric.
+   * @return the given metric.
+   */
+  public <T extends Metric> T register(T metric) {
+    metrics.add(metric);
+    return metric;
+  }
+
+  /**
+   * Unregisters the given metric.
+   *
+   * @param metric a metric not to expose anymore.
+   */
+  public void unregister(Metric metric) {
+    metrics.remove(metric);
+  }
+
+  /**
+   * Returns every registered metric in the Prometheus text format.
+   *
+   * @return every registered metric in the Prometheus text format.
+   */
+  public String toPrometheusText() {
+    StringBuilder out = new StringBuilder();
+    for (Metric metric : metrics) {
+      metric.writeTo(out);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Appends the HELP and TYPE lines of a metric.
+   *
+   * @param out a buffer to append to.
+   * @param name a name of the metric.
+   * @param help a description of the metric.
+   * @param type the Prometheus type of the metric.
+   */
+  static void writeHeader(StringBuilder out, String name, String help, String type) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * Appends a single sample.
+   *
+   * @param out a buffer to append to.
+   * @param name a name of the sample.
+   * @param labelName a name of the label, or null for a sample without a label.
+   * @param labelValue a value of the label.
+   * @param value a value of the sample.
+   */
+  static void writeSample(StringBuilder out, String name, String labelName, String labelValue,
+                          double value) {
+    out.append(name);
+    if (labelName != null) {
+      out.append('{').append(labelName).append("=\"");
+      for (int i = 0; i < labelValue.length(); i++) {
+        char c = labelValue.charAt(i);
+        if (c == '\\' || c == '"') {
+          out.append('\\').append(c);
+        } else if (c == '\n') {
+          out.append("\\n");
+        } else {
+          out.append(c);
+        }
+      }
+      out.append("\"}");
+    }
+    out.append(' ');
+    if (value == (long) value) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+    out.append('\n');
+  }
+}
@@ -21,34 +21,60 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.appengine.demos.websocketchat.domain.ChatRoomParticipants;
+import com.google.appengine.demos.websocketchat.domain.ServerNodeLoad;
 import com.google.appengine.demos.websocketchat.domain.WebSocketServerNode;
+import com.google.appengine.demos.websocketchat.message.BinaryPropagateCodec;
 import com.google.appengine.demos.websocketchat.message.ChatMessage;
+import com.google.appengine.demos.websocketchat.message.NodeAnnouncementMessage;
 import com.google.appengine.demos.websocketchat.message.OutgoingMessage;
+import com.google.appengine.demos.websocketchat.message.ParticipantDeltaMessage;
 import com.google.appengine.demos.websocketchat.message.ParticipantListMessage;
+import com.google.appengine.demos.websocketchat.message.PropagateBatchMessage;
+import com.google.appengine.demos.websocketchat.message.PropagatedMessage;
+import com.google.appengine.demos.websocketchat.message.RoomInterestMessage;
+import com.google.appengine.demos.websocketchat.metrics.ChatMetrics;
+import com.google.appengine.demos.websocketchat.metrics.Gauge;
+import com.google.appengine.demos.websocketchat.metrics.Metric;
 import com.google.apphosting.api.ApiProxy;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
 import com.google.gson.Gson;
-import com.googlecode.objectify.Key;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.googlecode.objectify.Result;
 import org.java_websocket.WebSocket;
-import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
-import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.server.WebSocketServer;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
@@ -62,20 +88,188 @@ public class ChatSocketServer extends WebSocketServer {
 
   private static final int DEFAULT_PORT = 65080;
 
+  private static final int DECODERS = Integer.getInteger("websocketchat.server.decoders",
+      Runtime.getRuntime().availableProcessors());
+
   private static final Gson GSON = new Gson();
 
+  private static final JsonParser JSON_PARSER = new JsonParser();
+
+  private static final int PROPAGATE_MAX_BATCH_SIZE =
+      Integer.getInteger("websocketchat.propagate.maxBatchSize", 100);
+
+  private static final long PROPAGATE_LINGER_MILLIS =
+      Long.getLong("websocketchat.propagate.lingerMillis", 5L);
+
+  private static final int PARTICIPANT_LIST_WORKERS =
+      Integer.getInteger("websocketchat.bridge.participantListWorkers", 2);
+
+  private static final int PROPAGATE_WORKERS =
+      Integer.getInteger("websocketchat.bridge.propagateWorkers", 2);
+
+  private static final int DATASTORE_WORKERS =
+      Integer.getInteger("websocketchat.bridge.datastoreWorkers", 4);
+
+  private static final long PARTICIPANT_LIST_DEBOUNCE_MILLIS =
+      Long.getLong("websocketchat.participantList.debounceMillis", 200L);
+
+  private static final long PARTICIPANT_WRITE_WINDOW_MILLIS =
+      Long.getLong("websocketchat.participantWriter.windowMillis", 100L);
+
+  private static final long PARTICIPANT_WRITE_MAX_RETRY_DELAY_MILLIS =
+      Long.getLong("websocketchat.participantWriter.maxRetryDelayMillis", 10000L);
+
+  private static final long NODE_REGISTRY_REFRESH_SECONDS =
+      Long.getLong("websocketchat.nodeRegistry.refreshSeconds", 10L);
+
+  private static final long LOAD_REPORT_INTERVAL_SECONDS =
+      Long.getLong("websocketchat.loadReport.intervalSeconds", 10L);
+
+  private static final boolean BROWSER_COMPRESSION_ENABLED = Boolean.parseBoolean(
+      System.getProperty("websocketchat.compression.browserEnabled", "false"));
+
+  private static final String BROWSER_COMPRESSION_PARAMETER = "compress=deflate-raw";
+
+  private static final OutboundQueueManager.OverflowPolicy OVERFLOW_POLICY =
+      OutboundQueueManager.OverflowPolicy.valueOf(System.getProperty(
+          "websocketchat.connection.overflowPolicy", "DROP_NON_CRITICAL"));
+
+  private static final long OUTBOUND_FLUSH_INTERVAL_MILLIS =
+      Long.getLong("websocketchat.connection.flushIntervalMillis", 10L);
+
+  private static final double CONNECTION_MESSAGES_PER_SECOND = Double.parseDouble(
+      System.getProperty("websocketchat.rateLimit.connection.messagesPerSecond", "5"));
+
+  private static final int CONNECTION_BURST =
+      Integer.getInteger("websocketchat.rateLimit.connection.burst", 10);
+
+  private static final double ROOM_MESSAGES_PER_SECOND = Double.parseDouble(
+      System.getProperty("websocketchat.rateLimit.room.messagesPerSecond", "50"));
+
+  private static final int ROOM_BURST =
+      Integer.getInteger("websocketchat.rateLimit.room.burst", 100);
+
+  private static final long NODE_LEAVE_DRAIN_MILLIS = 1000L;
+
+  /* The upper bounds of the numbers of the connections in the buckets of the chat rooms. */
+  private static final int[] ROOM_SIZE_BOUNDS = {1, 10, 100, 1000};
+
+  private static final String[] ROOM_SIZE_LABELS = {"1", "2-10", "11-100", "101-1000", "1001+"};
+
+  /* The only types a browser sends, every other type is accepted only from the server nodes. */
+  private static final Set<OutgoingMessage.MessageType> CLIENT_MESSAGE_TYPES =
+      Sets.immutableEnumSet(OutgoingMessage.MessageType.MESSAGE,
+          OutgoingMessage.MessageType.ENTER, OutgoingMessage.MessageType.PARTICIPANTS);
+
   private static final String NETWORK_INTERFACE_METADATA_URL =
       "http://metadata/computeMetadata/v1beta1/instance/network-interfaces/0/access-configs/0/" +
           "external-ip";
 
   private final MetaInfoManager metaInfoManager;
 
-  private ConcurrentLinkedQueue<String> updateAndSendParticipantListQueue;
+  private final NodeRegistry nodeRegistry;
+
+  private final ParticipantDirectory participantDirectory;
+
+  private final RoomRoutingTable roomRoutingTable;
+
+  private final Set<String> subscribedRooms;
+
+  private final ConcurrentMap<WebSocket, BinaryPropagateCodec.Decoder> peerDecoders;
+
+  /* The connections which identified themselves as another server node in the handshake. */
+  private final ConcurrentMap<WebSocket, Peer> peers;
 
-  private ConcurrentLinkedQueue<OutgoingMessage> propagateQueue;
+  private final Set<WebSocket> compressedConnections;
+
+  private final FrameCompressor browserCompressor;
+
+  private final RoomHistory roomHistory;
+
+  private final OutboundQueueManager outboundQueueManager;
+
+  private final ConcurrentMap<WebSocket, TokenBucket> connectionRateLimits;
+
+  private final ConcurrentMap<String, TokenBucket> roomRateLimits;
+
+  private final AtomicLong rejectedByConnectionLimit;
+
+  private final AtomicLong rejectedByRoomLimit;
+
+  private final ConcurrentMap<String, ParticipantListMessage> participantListSnapshots;
+
+  /* The encoded frame of each snapshot by identity, which goes away with the snapshot. */
+  private final ConcurrentMap<ParticipantListMessage, SharedTextFrame> participantListFrames;
+
+  private final ParticipantListWriter participantListWriter;
+
+  private DirtyRoomScheduler participantListUpdateScheduler;
+
+  private List<BlockingQueue<PropagateRequest>> propagateQueues;
+
+  private final AtomicLong receivedMessageCount;
+
+  /*
+   * The connections whose ENTER or NODE_JOIN is being handled on the datastoreExecutor, with the
+   * messages which arrived from them in the meantime.
+   */
+  private final ConcurrentMap<WebSocket, List<DeferredMessage>> deferredMessages;
+
+  /* The bridge which started this chat server. */
+  private ChatServerBridge bridge;
 
   private String hostname;
 
+  /**
+   * A message queued for propagation, with the time when it was queued.
+   */
+  private static class PropagateRequest {
+
+    private final OutgoingMessage message;
+
+    private final long enqueuedNanos;
+
+    PropagateRequest(OutgoingMessage message) {
+      this.message = message;
+      this.enqueuedNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * The server node on the other end of a connection, as it identified itself in
+   * {@link PeerConnectionManager#NODE_HEADER}.
+   */
+  private static class Peer {
+
+    private final String webSocketUrl;
+
+    /* Set once the NodeRegistry had the server node, and kept until the connection closes. */
+    private volatile boolean verified;
+
+    Peer(String webSocketUrl) {
+      this.webSocketUrl = webSocketUrl;
+    }
+  }
+
+  /**
+   * A message which waits for the ENTER or the NODE_JOIN of the same connection to complete.
+   * Either the text message or the binary frame is non-null.
+   */
+  private static class DeferredMessage {
+
+    private final String rawMessage;
+
+    private final ByteBuffer bytes;
+
+    private final long receivedNanos;
+
+    DeferredMessage(String rawMessage, ByteBuffer bytes, long receivedNanos) {
+      this.rawMessage = rawMessage;
+      this.bytes = bytes;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+
   private String getHostname() throws IOException {
     if (hostname == null) {
       if (SystemProperty.environment.value().equals(SystemProperty.Environment.Value.Production)) {
@@ -96,6 +290,25 @@ public class ChatSocketServer extends WebSocketServer {
     return hostname;
   }
 
+  /**
+   * Returns the number of the open connections from the clients, which doesn't include the
+   * connections from the other server nodes.
+   *
+   * @return the number of the open connections from the clients.
+   */
+  private int getClientConnectionCount() {
+    Collection<WebSocket> connections = connections();
+    int count = 0;
+    synchronized (connections) {
+      for (WebSocket conn : connections) {
+        if (! peers.containsKey(conn)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
   /**
    * Returns a Websocket URL of this server.
    *
@@ -107,26 +320,63 @@ public class ChatSocketServer extends WebSocketServer {
   }
 
   /**
-   * A class that runs in another thread and becomes a bridge between App Engine and the
+   * A class that runs in other threads and becomes a bridge between App Engine and the
    * websocket server.
    */
-  public static class ChatServerBridge implements Runnable {
+  public static class ChatServerBridge {
 
     private ChatSocketServer chatSocketServer;
 
-    private Thread watcherThread;
+    private List<Thread> workerThreads;
 
     private String namespace;
 
     private static ChatServerBridge chatServerBridge;
 
-    private CopyOnWriteArrayList<Key<ChatRoomParticipants>> chatRoomParticipantsKeyList;
+    private volatile ApiProxy.Environment backgroundEnvironment;
+
+    private PeerConnectionManager peerConnectionManager;
+
+    private ServerNodeLoad serverNodeLoad;
 
-    private ApiProxy.Environment backgroundEnvironment;
+    private List<Metric> gauges;
+
+    /*
+     * Runs the parts of the client message handling which may block on the datastore, so that
+     * the websocket threads never wait for it.
+     */
+    private ThreadPoolExecutor datastoreExecutor;
+
+    private final int port;
+
+    private final ThreadFactory threadFactory;
+
+    /*
+     * Set before interrupting the workers, since a datastore call may consume the interrupt and
+     * throw instead of InterruptedException.
+     */
+    private volatile boolean stopping;
 
     private ChatServerBridge() {
+      this(DEFAULT_PORT, ThreadManager.backgroundThreadFactory());
+    }
+
+    /**
+     * Creates a bridge which is not the singleton instance, so that several server nodes can run
+     * in a single JVM, e.x. in a load test.
+     *
+     * @param port a port number on which the chat server will listen.
+     * @param threadFactory a factory for the worker threads of the bridge, whose threads must
+     *                      have an App Engine environment.
+     */
+    @VisibleForTesting
+    ChatServerBridge(int port, ThreadFactory threadFactory) {
+      this.port = port;
+      this.threadFactory = threadFactory;
       namespace = NamespaceManager.get();
-      chatRoomParticipantsKeyList = new CopyOnWriteArrayList<>();
+      peerConnectionManager = new PeerConnectionManager(threadFactory);
+      workerThreads = new CopyOnWriteArrayList<>();
+      gauges = new ArrayList<>();
     }
 
     /**
@@ -142,15 +392,21 @@ public class ChatSocketServer extends WebSocketServer {
     }
 
     private void registerWebSocketServerNode() throws IOException {
-      WebSocketServerNode webSocketServerNode = new WebSocketServerNode(
-          chatSocketServer.getWebSocketURL());
-      ofy().save().entity(webSocketServerNode).now();
+      String webSocketUrl = chatSocketServer.getWebSocketURL();
+      serverNodeLoad = new ServerNodeLoad(webSocketUrl);
+      long start = System.nanoTime();
+      // The load goes first, so that the other server nodes find it with the server node.
+      ofy().save().entity(serverNodeLoad).now();
+      ofy().save().entity(new WebSocketServerNode(webSocketUrl)).now();
+      ChatMetrics.DATASTORE_SAVE_SERVER_NODE.observeSince(start);
     }
 
     private void removeWebSocketServerNode() throws IOException {
-      Key<WebSocketServerNode> key = WebSocketServerNode.getKeyFromWebSocketUrl(
-          chatSocketServer.getWebSocketURL());
-      ofy().delete().key(key).now();
+      String webSocketUrl = chatSocketServer.getWebSocketURL();
+      long start = System.nanoTime();
+      ofy().delete().keys(WebSocketServerNode.getKeyFromWebSocketUrl(webSocketUrl),
+          ServerNodeLoad.getKeyFromWebSocketUrl(webSocketUrl)).now();
+      ChatMetrics.DATASTORE_DELETE_SERVER_NODE.observeSince(start);
     }
 
     protected ApiProxy.Environment getBackgroundEnvironment() {
@@ -159,37 +415,252 @@ public class ChatSocketServer extends WebSocketServer {
 
     /**
      * Starts the websocket server, registers necessary information and then starts the bridge
-     * thread.
+     * worker threads.
      */
     public void start() {
       if (chatSocketServer != null) {
         throw new IllegalStateException("We already have a chatSocketServer.");
       }
-      chatSocketServer = new ChatSocketServer(DEFAULT_PORT);
+      stopping = false;
+      datastoreExecutor = newDatastoreExecutor();
+      chatSocketServer = new ChatSocketServer(port);
+      chatSocketServer.bridge = this;
       chatSocketServer.start();
       LOG.info("Server started on port: " + chatSocketServer.getPort());
+      chatSocketServer.nodeRegistry.addListener(new NodeRegistry.Listener() {
+        @Override
+        public void onNodesChanged(Set<String> webSocketUrls) {
+          peerConnectionManager.retainPeers(webSocketUrls);
+          chatSocketServer.roomRoutingTable.retainNodes(webSocketUrls);
+        }
+      });
       try {
+        peerConnectionManager.setLocalWebSocketUrl(chatSocketServer.getWebSocketURL());
+        chatSocketServer.participantDirectory.setLocalWebSocketUrl(
+            chatSocketServer.getWebSocketURL());
         registerWebSocketServerNode();
+        chatSocketServer.nodeRegistry.refresh();
+        refreshRoomRoutingTable();
+        announce(NodeAnnouncementMessage.join(chatSocketServer.getWebSocketURL()));
       } catch (IOException e) {
         LOG.warning(Throwables.getStackTraceAsString(e));
       }
-      ThreadManager.createBackgroundThread(this).start();
+      registerGauges();
+      startWorker(new NodeRegistryWorker());
+      startWorker(new LoadReportWorker());
+      startWorker(new OutboundQueueWorker());
+      startWorker(new ParticipantWriteWorker());
+      for (int i = 0; i < PARTICIPANT_LIST_WORKERS; i++) {
+        startWorker(new ParticipantListWorker());
+      }
+      for (BlockingQueue<PropagateRequest> propagateQueue : chatSocketServer.propagateQueues) {
+        startWorker(new PropagateWorker(propagateQueue));
+      }
     }
 
     /**
-     * Stops the websocket server, cleans up some info, and then stop the main bridge thread.
+     * Creates a fixed size pool of the threads from the threadFactory, which run in the
+     * namespace of this bridge like the bridge workers.
+     *
+     * @return a new executor for the datastore operations.
+     */
+    private ThreadPoolExecutor newDatastoreExecutor() {
+      return new ThreadPoolExecutor(DATASTORE_WORKERS, DATASTORE_WORKERS, 0L,
+          TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+              return threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                  NamespaceManager.set(namespace);
+                  runnable.run();
+                }
+              });
+            }
+          });
+    }
+
+    /**
+     * Sends the given announcement directly to the other active server nodes, so that they
+     * don't have to wait for the next refresh of their NodeRegistry or RoomRoutingTable.
+     *
+     * @param announcement either a NodeAnnouncementMessage or a RoomInterestMessage.
+     * @throws IOException
+     */
+    private void announce(Object announcement) throws IOException {
+      String json = GSON.toJson(announcement);
+      for (String webSocketUrl : chatSocketServer.nodeRegistry.getWebSocketUrls()) {
+        if (! webSocketUrl.equals(chatSocketServer.getWebSocketURL())) {
+          peerConnectionManager.send(webSocketUrl, json);
+        }
+      }
+    }
+
+    /**
+     * Registers the gauges of the queues and the connections of the current chat server to the
+     * ChatMetrics. They are read only when the metrics are scraped.
+     */
+    private void registerGauges() {
+      final ChatSocketServer server = chatSocketServer;
+      gauges.add(new Gauge("websocketchat_propagate_queue_depth",
+          "Messages waiting in each propagate queue.", "gauge", "queue") {
+        @Override
+        protected void collect(Map<String, Number> samples) {
+          for (int i = 0; i < server.propagateQueues.size(); i++) {
+            samples.put(String.valueOf(i), server.propagateQueues.get(i).size());
+          }
+        }
+      });
+      gauges.add(Gauge.of("websocketchat_participant_list_dirty_rooms",
+          "Chat rooms waiting for a participant list update.", "gauge", new Gauge.Value() {
+            @Override
+            public Number get() {
+              return server.participantListUpdateScheduler.size();
+            }
+          }));
+      gauges.add(Gauge.of("websocketchat_datastore_queue_depth",
+          "Client messages waiting for a datastore worker.", "gauge", new Gauge.Value() {
+            @Override
+            public Number get() {
+              return datastoreExecutor.getQueue().size();
+            }
+          }));
+      gauges.add(Gauge.of("websocketchat_participant_write_dirty_rooms",
+          "Chat rooms waiting for their participant list to be saved.", "gauge",
+          new Gauge.Value() {
+            @Override
+            public Number get() {
+              return server.participantListWriter.getDirtyRoomCount();
+            }
+          }));
+      gauges.add(new Gauge("websocketchat_participant_writes_total",
+          "Participant lists saved to the datastore, by result.", "counter", "result") {
+        @Override
+        protected void collect(Map<String, Number> samples) {
+          samples.put("saved", server.participantListWriter.getSavedEntities());
+          samples.put("failed", server.participantListWriter.getFailedEntities());
+        }
+      });
+      gauges.add(Gauge.of("websocketchat_peer_queue_depth",
+          "Messages waiting to be sent to the other server nodes.", "gauge", new Gauge.Value() {
+            @Override
+            public Number get() {
+              return peerConnectionManager.getQueueSize();
+            }
+          }));
+      gauges.add(Gauge.of("websocketchat_outbound_queued_frames",
+          "Frames waiting in the outbound queues of the slow clients.", "gauge",
+          new Gauge.Value() {
+            @Override
+            public Number get() {
+              return server.outboundQueueManager.getQueuedFrames();
+            }
+          }));
+      gauges.add(new Gauge("websocketchat_rate_limit_rejections_total",
+          "Client messages rejected by the rate limits.", "counter", "limit") {
+        @Override
+        protected void collect(Map<String, Number> samples) {
+          samples.put("connection", server.rejectedByConnectionLimit.get());
+          samples.put("room", server.rejectedByRoomLimit.get());
+        }
+      });
+      gauges.add(new Gauge("websocketchat_compression_ratio",
+          "Uncompressed bytes per compressed byte of the compressed frames.", "gauge",
+          "channel") {
+        @Override
+        protected void collect(Map<String, Number> samples) {
+          samples.put("peer", peerConnectionManager.getCompressor().getCompressionRatio());
+          samples.put("browser", server.browserCompressor.getCompressionRatio());
+        }
+      });
+      gauges.add(Gauge.of("websocketchat_connections",
+          "Open websocket connections, including the other server nodes.", "gauge",
+          new Gauge.Value() {
+            @Override
+            public Number get() {
+              return server.connections().size();
+            }
+          }));
+      // The names of the chat rooms are up to the users, so they never become label values.
+      gauges.add(new Gauge("websocketchat_rooms",
+          "Chat rooms with any connection, by the number of their connections.", "gauge",
+          "connections") {
+        @Override
+        protected void collect(Map<String, Number> samples) {
+          int[] rooms = new int[ROOM_SIZE_LABELS.length];
+          for (String room : server.metaInfoManager.getRooms()) {
+            int connections = server.metaInfoManager.getConnections(room).size();
+            if (connections > 0) {
+              int bucket = 0;
+              while (bucket < ROOM_SIZE_BOUNDS.length && connections > ROOM_SIZE_BOUNDS[bucket]) {
+                bucket++;
+              }
+              rooms[bucket]++;
+            }
+          }
+          for (int bucket = 0; bucket < rooms.length; bucket++) {
+            samples.put(ROOM_SIZE_LABELS[bucket], rooms[bucket]);
+          }
+        }
+      });
+      gauges.add(Gauge.of("websocketchat_room_connections_max",
+          "Websocket connections in the largest chat room.", "gauge",
+          new Gauge.Value() {
+            @Override
+            public Number get() {
+              int max = 0;
+              for (String room : server.metaInfoManager.getRooms()) {
+                max = Math.max(max, server.metaInfoManager.getConnections(room).size());
+              }
+              return max;
+            }
+          }));
+      for (Metric gauge : gauges) {
+        ChatMetrics.REGISTRY.register(gauge);
+      }
+    }
+
+    private void startWorker(BridgeWorker worker) {
+      Thread thread = threadFactory.newThread(worker);
+      workerThreads.add(thread);
+      thread.start();
+    }
+
+    /**
+     * Stops the websocket server, cleans up some info, and then stop the bridge worker threads.
      */
     public void stop() {
       try {
         removeWebSocketServerNode();
-        chatSocketServer.stop();
-        watcherThread.interrupt();
-        watcherThread.join();
-        watcherThread = null;
-        // delete participant list in the datastore
-        ofy().delete().keys(chatRoomParticipantsKeyList).now();
+        announce(NodeAnnouncementMessage.leave(chatSocketServer.getWebSocketURL()));
+        // The LEAVE of the closed clients must go over the connections the others already trust.
+        chatSocketServer.stop((int) NODE_LEAVE_DRAIN_MILLIS);
+        peerConnectionManager.awaitEmpty(NODE_LEAVE_DRAIN_MILLIS);
+        peerConnectionManager.closeAll();
+        stopping = true;
+        for (Thread workerThread : workerThreads) {
+          workerThread.interrupt();
+        }
+        datastoreExecutor.shutdownNow();
+        for (Thread workerThread : workerThreads) {
+          workerThread.join();
+        }
+        workerThreads.clear();
+        // Nothing may be saved after the delete below.
+        ParticipantListWriter participantListWriter = chatSocketServer.participantListWriter;
+        participantListWriter.flush(chatSocketServer.getWebSocketURL());
+        // delete participant list in the datastore in a single batch, while cleaning up the rest
+        long start = System.nanoTime();
+        Result<Void> deleted =
+            ofy().delete().keys(new ArrayList<>(participantListWriter.getSavedKeys()));
+        datastoreExecutor.awaitTermination(NODE_LEAVE_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+        for (Metric gauge : gauges) {
+          ChatMetrics.REGISTRY.unregister(gauge);
+        }
+        gauges.clear();
+        deleted.now();
+        ChatMetrics.DATASTORE_DELETE_PARTICIPANTS.observeSince(start);
         // initialize variables
-        chatRoomParticipantsKeyList = new CopyOnWriteArrayList<>();
         chatSocketServer = null;
       } catch (IOException|InterruptedException e) {
         LOG.warning(Throwables.getStackTraceAsString(e));
@@ -197,124 +668,332 @@ public class ChatSocketServer extends WebSocketServer {
     }
 
     /**
-     * Pops a name of a chat room from the updateAndSendParticipantListQueue and update the
-     * participant list in the datastore, then creates the global list of the given chat room and
-     * distribute it to the clients who is participating to that chat room.
+     * Rebuilds the RoomRoutingTable from the participant lists of the active server nodes in the
+     * datastore.
+     */
+    private void refreshRoomRoutingTable() {
+      long start = System.nanoTime();
+      Map<String, Set<String>> serverNodesByRoom = ChatRoomParticipants.getServerNodesByRoom();
+      ChatMetrics.DATASTORE_LOAD_ROUTES.observeSince(start);
+      chatSocketServer.roomRoutingTable.refresh(serverNodesByRoom,
+          chatSocketServer.nodeRegistry.getWebSocketUrls());
+      LOG.info("RoomRoutingTable has routes for " + chatSocketServer.roomRoutingTable.size()
+          + " chat rooms.");
+    }
+
+    /**
+     * Announces to the other active server nodes that this server node started or stopped
+     * hosting the given chat room, if that changed since the last announcement.
      *
+     * <p>This is called on every ENTER, so that the messages of a new chat room are propagated to
+     * this server node right away, and after every participant list update, which catches the
+     * chat rooms that became empty. The announcements are serialized so that the other server
+     * nodes receive them in the same order as the changes of the subscribedRooms.</p>
+     *
+     * @param room a name of the chat room.
      * @throws IOException
      */
-    private void updateParticipantListAndDistribute() throws IOException {
-      if (! chatSocketServer.updateAndSendParticipantListQueue.isEmpty()) {
-        // Update the participant list in the datastore
-        String room = chatSocketServer.updateAndSendParticipantListQueue.remove();
-        ChatRoomParticipants chatRoomParticipants = new ChatRoomParticipants(room,
-            chatSocketServer.getWebSocketURL(),
-            chatSocketServer.metaInfoManager.getParticipantList(room));
-        ofy().save().entity(chatRoomParticipants).now();
-        chatRoomParticipantsKeyList.add(chatRoomParticipants.getKey());
-        // Retrieve the full participant list in the room and distribute it
-        Set<String> participantSet = ChatRoomParticipants.getParticipants(room);
-        ParticipantListMessage participantListMessage = new ParticipantListMessage(room,
-            participantSet);
-        chatSocketServer.sendToClients(participantListMessage);
+    private synchronized void updateRoomSubscription(String room) throws IOException {
+      String webSocketUrl = chatSocketServer.getWebSocketURL();
+      if (! chatSocketServer.metaInfoManager.getConnections(room).isEmpty()) {
+        if (chatSocketServer.subscribedRooms.add(room)) {
+          announce(RoomInterestMessage.subscribe(room, webSocketUrl));
+        }
+      } else if (chatSocketServer.subscribedRooms.remove(room)) {
+        // The messages of this chat room won't be propagated to us anymore.
+        chatSocketServer.participantDirectory.invalidate(room);
+        chatSocketServer.roomHistory.clear(room);
+        announce(RoomInterestMessage.unsubscribe(room, webSocketUrl));
       }
     }
 
     /**
-     * Propagate a message popped from the propagateQueue to other active server nodes.
+     * Requests the ParticipantListWriter to update the participant list of the given chat room
+     * in the datastore, then creates the global list of the given chat room and distribute it to
+     * the clients on this server node who is participating to that chat room. The distribution
+     * doesn't wait for the datastore, since the ParticipantDirectory takes the participants of
+     * this server node from the MetaInfoManager rather than from the datastore, even when it
+     * reloads the chat room before the ParticipantListWriter saved them.
+     *
+     * <p>Only the changes since the last version are distributed as a ParticipantDeltaMessage.
+     * The full participant list is sent only for the first version, on ENTER, and on request
+     * from a client which detected a version gap.</p>
      *
+     * @param room a name of the chat room taken from the participantListUpdateScheduler.
      * @throws IOException
      */
-    private void propagateOneMessage() throws IOException {
-      if (! chatSocketServer.propagateQueue.isEmpty()) {
-        // handle message propagation between the server nodes.
-        OutgoingMessage message = chatSocketServer.propagateQueue.remove();
-        LOG.info("Handling a propagate message: " + message.toJson(GSON));
-        Key<WebSocketServerNode> parentKey = WebSocketServerNode.getRootKey();
-        List<Key<WebSocketServerNode>> serverKeys = ofy().load()
-            .type(WebSocketServerNode.class).ancestor(parentKey).keys().list();
-        final ChatMessage propagateMessage =
-            ChatMessage.createPropagateMessage(message, GSON);
-        for (Key<WebSocketServerNode> key: serverKeys) {
-          LOG.info("Server: " + key.getName());
-          if (! key.getName().equals(chatSocketServer.getWebSocketURL())) {
-            // Send a propagate message
-            LOG.info("Trying to send a message to the server: " + key.getName());
-            try {
-              final WebSocketClient chatClient = new WebSocketClient(new URI(key.getName())) {
-                @Override
-                public void onOpen(ServerHandshake handshakedata) {
-                  // Send propagateMessage itself.
-                  this.send(GSON.toJson(propagateMessage));
-                  this.close();
-                }
-
-                @Override
-                public void onMessage(String message) {
-                  LOG.info("Message received: " + message);
-                }
-
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                  LOG.info("Connection closed.");
-                }
+    private void updateParticipantListAndDistribute(String room) throws IOException {
+      // Update the participant list in the datastore behind us
+      chatSocketServer.participantListWriter.markDirty(room);
+      updateRoomSubscription(room);
+      if (chatSocketServer.metaInfoManager.getConnections(room).isEmpty()) {
+        // Nobody to distribute to on this server node.
+        chatSocketServer.participantListSnapshots.remove(room);
+        return;
+      }
+      // Retrieve the full participant list in the room and distribute the changes
+      Set<String> participantSet = chatSocketServer.participantDirectory.getParticipants(room);
+      LOG.info("ParticipantDirectory stats: " + chatSocketServer.participantDirectory.getStats());
+      while (true) {
+        ParticipantListMessage previous = chatSocketServer.participantListSnapshots.get(room);
+        if (previous == null) {
+          ParticipantListMessage current = new ParticipantListMessage(room, participantSet, 1L);
+          if (chatSocketServer.participantListSnapshots.putIfAbsent(room, current) == null) {
+            chatSocketServer.sendToLocalClients(current);
+            return;
+          }
+        } else {
+          if (previous.getParticipantSet().equals(participantSet)) {
+            return;
+          }
+          ParticipantListMessage current = new ParticipantListMessage(room, participantSet,
+              previous.getVersion() + 1);
+          if (chatSocketServer.participantListSnapshots.replace(room, previous, current)) {
+            chatSocketServer.sendToLocalClients(ParticipantDeltaMessage.between(previous, current));
+            return;
+          }
+        }
+      }
+    }
 
-                @Override
-                public void onError(Exception ex) {
-                  LOG.warning(Throwables.getStackTraceAsString(ex));
-                }
-              };
-              chatClient.connect();
-            } catch (URISyntaxException e) {
-              LOG.warning(Throwables.getStackTraceAsString(e));
-            }
+    /**
+     * Propagates the given messages to other active server nodes over the persistent connections
+     * managed by the PeerConnectionManager. The batch is queued for every server node and sent
+     * asynchronously, so a slow server node doesn't delay the others.
+     *
+     * <p>Each message is propagated only to the server nodes hosting its chat room according to
+     * the RoomRoutingTable. The messages for a server node are packed into a single batch, and
+     * the batch is sent as a single frame, either in the binary encoding or as a
+     * PropagateBatchMessage. The order of the messages is preserved.</p>
+     *
+     * @param requests the messages taken from one of the propagateQueues.
+     * @throws IOException
+     */
+    private void propagateMessages(List<PropagateRequest> requests) throws IOException {
+      String selfWebSocketUrl = chatSocketServer.getWebSocketURL();
+      Set<String> activeWebSocketUrls = chatSocketServer.nodeRegistry.getWebSocketUrls();
+      Map<String, List<OutgoingMessage>> batches = new LinkedHashMap<>();
+      // The oldest message of a batch is the first one, since the order is preserved.
+      Map<String, Long> batchEnqueuedNanos = new HashMap<>();
+      for (PropagateRequest request : requests) {
+        OutgoingMessage message = request.message;
+        for (String webSocketUrl
+            : chatSocketServer.roomRoutingTable.getWebSocketUrls(message.getRoom())) {
+          if (webSocketUrl.equals(selfWebSocketUrl)
+              || ! activeWebSocketUrls.contains(webSocketUrl)) {
+            continue;
           }
+          List<OutgoingMessage> batch = batches.get(webSocketUrl);
+          if (batch == null) {
+            batch = new ArrayList<>();
+            batches.put(webSocketUrl, batch);
+            batchEnqueuedNanos.put(webSocketUrl, request.enqueuedNanos);
+          }
+          batch.add(message);
         }
       }
+      for (Map.Entry<String, List<OutgoingMessage>> entry : batches.entrySet()) {
+        // Send a propagate batch over the persistent connection
+        LOG.fine("Trying to send a batch of " + entry.getValue().size()
+            + " messages to the server: " + entry.getKey());
+        peerConnectionManager.sendBatch(entry.getKey(), entry.getValue(),
+            batchEnqueuedNanos.get(entry.getKey()));
+      }
     }
 
     /**
-     * A main loop of this bridge thread.
+     * A base class of the bridge worker threads.
      *
      * <p>The chat server requests us the following 2 things.</p>
      * <ul>
      *   <li>Update and distribute the participant list in a particular chat room.</li>
      *   <li>Propagate a message to other active server nodes.</li>
      * </ul>
-     * <p>This thread watches the 2 queues on the ChatSocketServer instance,
-     * and handles those requests in the main loop.</p>
-     * <p>If this loop becomes the performance bottleneck, distribute these work loads into
-     * multiple thread worker.</p>
+     * <p>Each worker blocks on one of the queues on the ChatSocketServer instance, and handles
+     * those requests as soon as they are enqueued.</p>
      */
-    public void run() {
-      if (watcherThread != null) {
-        throw new IllegalStateException("A watcherThread already exists.");
-      }
-      watcherThread = Thread.currentThread();
-      LOG.info("Namespace is set to " + namespace + " in thread " + watcherThread.toString());
-      NamespaceManager.set(namespace);
-      // Store the environment for later use.
-      backgroundEnvironment = ApiProxy.getCurrentEnvironment();
+    private abstract class BridgeWorker implements Runnable {
 
-      while (true) {
-        if (Thread.currentThread().isInterrupted()) {
-          LOG.info("ChatServerBridge is stopping.");
-          return;
-        } else {
+      /**
+       * Blocks until a request arrives, then handles it.
+       *
+       * @throws IOException
+       * @throws InterruptedException
+       */
+      protected abstract void process() throws IOException, InterruptedException;
+
+      @Override
+      public void run() {
+        LOG.info("Namespace is set to " + namespace + " in thread " + Thread.currentThread());
+        NamespaceManager.set(namespace);
+        // Store the environment for later use.
+        backgroundEnvironment = ApiProxy.getCurrentEnvironment();
+
+        while (! stopping && ! Thread.currentThread().isInterrupted()) {
           try {
-            updateParticipantListAndDistribute();
-            propagateOneMessage();
-            Thread.sleep(100);
+            process();
           } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+          } catch (IOException|RuntimeException e) {
+            if (! stopping) {
+              LOG.warning(Throwables.getStackTraceAsString(e));
+            }
+          }
+        }
+        LOG.info("ChatServerBridge worker is stopping.");
+      }
+    }
+
+    /**
+     * A worker that refreshes the NodeRegistry and the RoomRoutingTable every
+     * {@link #NODE_REGISTRY_REFRESH_SECONDS}, and discards the expired participant lists of the
+     * ParticipantDirectory.
+     */
+    private class NodeRegistryWorker extends BridgeWorker {
+
+      @Override
+      protected void process() throws InterruptedException {
+        TimeUnit.SECONDS.sleep(NODE_REGISTRY_REFRESH_SECONDS);
+        chatSocketServer.nodeRegistry.refresh();
+        refreshRoomRoutingTable();
+        chatSocketServer.participantDirectory.cleanUp();
+      }
+    }
+
+    /**
+     * A worker that publishes the load of this server node every
+     * {@link #LOAD_REPORT_INTERVAL_SECONDS}, and logs the compression ratios achieved.
+     */
+    private class LoadReportWorker extends BridgeWorker {
+
+      private long lastReceivedMessageCount;
+
+      private long lastReportNanos = System.nanoTime();
+
+      @Override
+      protected void process() throws InterruptedException {
+        TimeUnit.SECONDS.sleep(LOAD_REPORT_INTERVAL_SECONDS);
+        long now = System.nanoTime();
+        long receivedMessageCount = chatSocketServer.receivedMessageCount.get();
+        double messagesPerSecond = (receivedMessageCount - lastReceivedMessageCount)
+            / ((now - lastReportNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        lastReceivedMessageCount = receivedMessageCount;
+        lastReportNanos = now;
+        long outboundQueueDepth = peerConnectionManager.getQueueSize();
+        for (BlockingQueue<PropagateRequest> propagateQueue : chatSocketServer.propagateQueues) {
+          outboundQueueDepth += propagateQueue.size();
+        }
+        outboundQueueDepth += chatSocketServer.outboundQueueManager.getQueuedFrames();
+        serverNodeLoad.updateLoad(chatSocketServer.getClientConnectionCount(), messagesPerSecond,
+            outboundQueueDepth);
+        long start = System.nanoTime();
+        ofy().save().entity(serverNodeLoad).now();
+        ChatMetrics.DATASTORE_SAVE_SERVER_NODE.observeSince(start);
+        LOG.info(peerConnectionManager.getCompressor().toString());
+        LOG.info(chatSocketServer.browserCompressor.toString());
+        LOG.info(chatSocketServer.outboundQueueManager.toString());
+        LOG.info("Rate limits: rejectedByConnectionLimit="
+            + chatSocketServer.rejectedByConnectionLimit.get() + ", rejectedByRoomLimit="
+            + chatSocketServer.rejectedByRoomLimit.get());
+        chatSocketServer.removeIdleRoomRateLimits();
+      }
+    }
+
+    /**
+     * A worker that moves the queued frames of the slow clients to their sockets every
+     * {@link #OUTBOUND_FLUSH_INTERVAL_MILLIS}, as far as the sockets drained. The worker sleeps
+     * without a timeout while no client is slow.
+     */
+    private class OutboundQueueWorker extends BridgeWorker {
+
+      @Override
+      protected void process() throws InterruptedException {
+        chatSocketServer.outboundQueueManager.awaitBacklog();
+        TimeUnit.MILLISECONDS.sleep(OUTBOUND_FLUSH_INTERVAL_MILLIS);
+        chatSocketServer.outboundQueueManager.flush();
+      }
+    }
+
+    /**
+     * A worker that saves the participant lists of this server node in batches, see
+     * {@link ParticipantListWriter}.
+     */
+    private class ParticipantWriteWorker extends BridgeWorker {
+
+      @Override
+      protected void process() throws IOException, InterruptedException {
+        chatSocketServer.participantListWriter.process(chatSocketServer.getWebSocketURL());
+      }
+    }
+
+    /**
+     * A worker that handles the dirty chat rooms from the participantListUpdateScheduler.
+     */
+    private class ParticipantListWorker extends BridgeWorker {
+
+      @Override
+      protected void process() throws IOException, InterruptedException {
+        String room = chatSocketServer.participantListUpdateScheduler.take();
+        try {
+          updateParticipantListAndDistribute(room);
+        } finally {
+          chatSocketServer.participantListUpdateScheduler.complete(room);
+        }
+      }
+    }
+
+    /**
+     * A worker that handles the requests from one of the propagateQueues.
+     *
+     * <p>Every message of a chat room goes to the same queue, so a single worker propagates them
+     * in order. Once a message arrives, the worker waits for {@link #PROPAGATE_LINGER_MILLIS} at
+     * most so that more messages can join the batch, up to {@link #PROPAGATE_MAX_BATCH_SIZE}
+     * messages.</p>
+     */
+    private class PropagateWorker extends BridgeWorker {
+
+      private final BlockingQueue<PropagateRequest> propagateQueue;
+
+      PropagateWorker(BlockingQueue<PropagateRequest> propagateQueue) {
+        this.propagateQueue = propagateQueue;
+      }
+
+      @Override
+      protected void process() throws IOException, InterruptedException {
+        List<PropagateRequest> messages = new ArrayList<>();
+        messages.add(propagateQueue.take());
+        propagateQueue.drainTo(messages, PROPAGATE_MAX_BATCH_SIZE - messages.size());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROPAGATE_LINGER_MILLIS);
+        while (messages.size() < PROPAGATE_MAX_BATCH_SIZE) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
             break;
-          } catch (IOException e) {
-            LOG.warning(Throwables.getStackTraceAsString(e));
           }
+          PropagateRequest message = propagateQueue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (message == null) {
+            break;
+          }
+          messages.add(message);
+          propagateQueue.drainTo(messages, PROPAGATE_MAX_BATCH_SIZE - messages.size());
         }
+        propagateMessages(messages);
       }
     }
 
+    /**
+     * Returns a Websocket URL of a lightly loaded chat server for a new client, which may be
+     * another server node. Falls back to this chat server when no server node has published its
+     * load recently.
+     *
+     * @return a Websocket URL of a lightly loaded chat server.
+     * @throws IOException when failed to get the external IP address from the metadata server.
+     */
+    public String getWebSocketURLForNewClient() throws IOException {
+      return chatSocketServer.nodeRegistry.getLightlyLoadedWebSocketUrl(
+          TimeUnit.SECONDS.toMillis(LOAD_REPORT_INTERVAL_SECONDS * 3),
+          chatSocketServer.getWebSocketURL());
+    }
+
     /**
      * Returns a Websocket URL of the chat server.
      *
@@ -332,20 +1011,120 @@ public class ChatSocketServer extends WebSocketServer {
    * @param port a port number on which this chat server will listen.
    */
   public ChatSocketServer(int port) {
-    super(new InetSocketAddress(port));
+    // Every connection is served by a single decoder thread, so its messages stay in order.
+    super(new InetSocketAddress(port), DECODERS);
     metaInfoManager = new MetaInfoManager();
-    updateAndSendParticipantListQueue = new ConcurrentLinkedQueue<>();
-    propagateQueue = new ConcurrentLinkedQueue<>();
+    nodeRegistry = new NodeRegistry();
+    participantDirectory = new ParticipantDirectory(nodeRegistry, metaInfoManager);
+    participantDirectory.addListener(new ParticipantDirectory.Listener() {
+      @Override
+      public void onExpired(String room) {
+        requestParticipantListUpdateIfHosted(room);
+      }
+    });
+    roomRoutingTable =
+        new RoomRoutingTable(TimeUnit.SECONDS.toMillis(NODE_REGISTRY_REFRESH_SECONDS * 2));
+    subscribedRooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    peerDecoders = new ConcurrentHashMap<>();
+    peers = new ConcurrentHashMap<>();
+    compressedConnections = Collections.newSetFromMap(new ConcurrentHashMap<WebSocket, Boolean>());
+    browserCompressor = new FrameCompressor("browser", FrameCompressor.DEFAULT_THRESHOLD_BYTES);
+    roomHistory = new RoomHistory();
+    outboundQueueManager = new OutboundQueueManager(OVERFLOW_POLICY);
+    connectionRateLimits = new ConcurrentHashMap<>();
+    roomRateLimits = new ConcurrentHashMap<>();
+    rejectedByConnectionLimit = new AtomicLong();
+    rejectedByRoomLimit = new AtomicLong();
+    participantListSnapshots = new ConcurrentHashMap<>();
+    participantListFrames = new MapMaker().weakKeys().makeMap();
+    participantListWriter = new ParticipantListWriter(metaInfoManager,
+        PARTICIPANT_WRITE_WINDOW_MILLIS, PARTICIPANT_WRITE_MAX_RETRY_DELAY_MILLIS);
+    receivedMessageCount = new AtomicLong();
+    deferredMessages = new ConcurrentHashMap<>();
+    participantListUpdateScheduler =
+        new DirtyRoomScheduler(PARTICIPANT_LIST_DEBOUNCE_MILLIS);
+    propagateQueues = new ArrayList<>();
+    for (int i = 0; i < PROPAGATE_WORKERS; i++) {
+      propagateQueues.add(new LinkedBlockingQueue<PropagateRequest>());
+    }
+  }
+
+  @VisibleForTesting
+  MetaInfoManager getMetaInfoManager() {
+    return metaInfoManager;
   }
 
   /**
-   * Records the incoming connection to the log.
+   * Returns the propagateQueue for the given chat room. Every message of a chat room goes to the
+   * same queue, so that they are propagated in order.
+   *
+   * @param room a name of the chat room.
+   * @return the propagateQueue for the given chat room.
+   */
+  private BlockingQueue<PropagateRequest> getPropagateQueue(String room) {
+    int hash = room == null ? 0 : room.hashCode();
+    return propagateQueues.get((hash & Integer.MAX_VALUE) % propagateQueues.size());
+  }
+
+  /**
+   * Records the websocket URL which another server node sent in
+   * {@link PeerConnectionManager#NODE_HEADER}, and accepts the binary encoding of the propagate
+   * batches when it offers it in the handshake, preferring the one with the compression. Browsers
+   * can't send the header, so they always get JSON.
+   *
+   * @param conn a websocket connection object.
+   * @param draft the draft of the websocket protocol of the connection.
+   * @param request the handshake request from the client.
+   * @return the handshake response.
+   * @throws InvalidDataException when the handshake request is rejected.
+   */
+  @Override
+  public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+      ClientHandshake request) throws InvalidDataException {
+    ServerHandshakeBuilder response =
+        super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+    String peerUrl = request.getFieldValue(PeerConnectionManager.NODE_HEADER);
+    if (peerUrl == null || peerUrl.isEmpty()) {
+      return response;
+    }
+    peers.put(conn, new Peer(peerUrl));
+    String subprotocols = request.getFieldValue(BinaryPropagateCodec.SUBPROTOCOL_HEADER);
+    String subprotocol = null;
+    if (BinaryPropagateCodec.isOffered(subprotocols, BinaryPropagateCodec.DEFLATE_SUBPROTOCOL)) {
+      subprotocol = BinaryPropagateCodec.DEFLATE_SUBPROTOCOL;
+    } else if (BinaryPropagateCodec.isOffered(subprotocols, BinaryPropagateCodec.SUBPROTOCOL)) {
+      subprotocol = BinaryPropagateCodec.SUBPROTOCOL;
+    }
+    if (subprotocol != null) {
+      response.put(BinaryPropagateCodec.SUBPROTOCOL_HEADER, subprotocol);
+      peerDecoders.put(conn, new BinaryPropagateCodec.Decoder(GSON));
+    }
+    return response;
+  }
+
+  /**
+   * Records the incoming connection to the log. If the compression is enabled with
+   * websocketchat.compression.browserEnabled, which is off by default, and the client opted in
+   * to it with {@link #BROWSER_COMPRESSION_PARAMETER} in the query string, the large messages are
+   * sent to it compressed with raw DEFLATE in binary frames.
+   *
+   * <p>Java-WebSocket 1.3.0 can't negotiate the permessage-deflate extension, so the compression
+   * is done in the application level and the client decompresses the binary frames by itself.
+   * </p>
+   *
    * @param conn a websocket connection object.
    * @param handshake a websocket handshake object.
    */
   @Override
   public void onOpen(WebSocket conn, ClientHandshake handshake) {
     LOG.info(conn.getRemoteSocketAddress().getAddress().getHostAddress() + " entered the room!");
+    connectionRateLimits.put(conn, new TokenBucket(CONNECTION_MESSAGES_PER_SECOND,
+        CONNECTION_BURST));
+    String resourceDescriptor = handshake.getResourceDescriptor();
+    if (BROWSER_COMPRESSION_ENABLED && resourceDescriptor != null
+        && resourceDescriptor.contains(BROWSER_COMPRESSION_PARAMETER)) {
+      compressedConnections.add(conn);
+    }
   }
 
   /**
@@ -362,56 +1141,549 @@ public class ChatSocketServer extends WebSocketServer {
   @Override
   public void onClose(WebSocket conn, int code, String reason, boolean remote) {
     LOG.info(conn + " has left the room!");
-    MetaInfoManager.ConnectionInfo connectionInfo = metaInfoManager.getConnectionInfo(conn);
+    peerDecoders.remove(conn);
+    peers.remove(conn);
+    outboundQueueManager.remove(conn);
+    connectionRateLimits.remove(conn);
+    compressedConnections.remove(conn);
+    // An ENTER still running on the datastoreExecutor notices the close by itself, see enter.
+    MetaInfoManager.ConnectionInfo connectionInfo = metaInfoManager.removeConnection(conn);
     if (connectionInfo != null) {
       this.sendToClients(new ChatMessage(OutgoingMessage.MessageType.LEAVE,
           connectionInfo.getName(), connectionInfo.getRoom(), null));
-      metaInfoManager.removeConnection(conn);
-      if (! updateAndSendParticipantListQueue.contains(connectionInfo.getRoom())) {
-        updateAndSendParticipantListQueue.add(connectionInfo.getRoom());
-      }
+      participantDirectory.removeParticipant(connectionInfo.getRoom(), connectionInfo.getName());
+      requestParticipantListUpdate(connectionInfo.getRoom());
     }
   }
 
+  /**
+   * Requests the bridge to update and distribute the participant list of the given chat room.
+   * The requests for the same chat room within {@link #PARTICIPANT_LIST_DEBOUNCE_MILLIS} are
+   * handled at once.
+   *
+   * @param room a name of the chat room.
+   */
+  private void requestParticipantListUpdate(String room) {
+    participantListUpdateScheduler.markDirty(room);
+  }
+
   /**
    * Handles incoming messages.
    *
    * If the type of the incoming message is MessageType.ENTER, we need to check the username
    * against the current participant list and change the requested name with trailing underscores.
-   * Regardless of the type, we invoke sendToClient method with every incoming messages.
+   * The participant list may have to be loaded from the datastore, so the ENTER is handed over to
+   * the datastoreExecutor of the bridge, and the following messages from the same connection wait
+   * until it completes, see {@link #enter}. If the type is MessageType.PARTICIPANTS, the client is
+   * requesting the full participant list, so we send it only to the client. The messages over
+   * the rate limit of either the connection or the room, including the requests of the
+   * participant list, are rejected with a SYSTEM message.
+   * Only a MESSAGE, an ENTER or a PARTICIPANTS is accepted from a client, since the other types,
+   * a single PROPAGATE in particular, would let it send any frame to the others in a room.
+   * A message without a known type, or without a room except for a NodeAnnouncementMessage, is
+   * dropped here, so that it never reaches a propagateQueue shared with the other rooms.
+   * Regardless of the other types, we invoke sendToClient method with every incoming messages.
+   *
+   * If the incoming message is a PropagateBatchMessage from another server node, we invoke
+   * sendToClient method with every wrapped message in the order of the batch. If it is a
+   * NodeAnnouncementMessage, we update the NodeRegistry, and if it is a RoomInterestMessage, we
+   * update the RoomRoutingTable. These messages are accepted only from the connections of the
+   * active server nodes, see {@link #getPeerUrl}, and an announcement or a RoomInterestMessage
+   * only about the sender itself. A NODE_JOIN from a server node which is not in
+   * the NodeRegistry yet is verified against the datastore on the datastoreExecutor, like an
+   * ENTER.
    *
    * @param conn a websocket connection object.
    * @param rawMessage a raw message from the clients.
    */
   @Override
   public void onMessage(WebSocket conn, String rawMessage) {
-    // TODO: Make it threadsafe
+    long start = System.nanoTime();
     LOG.info(conn + ": " + rawMessage);
-    ApiProxy.setEnvironmentForCurrentThread(
-        ChatServerBridge.getInstance().getBackgroundEnvironment());
-    ChatMessage message = GSON.fromJson(rawMessage, ChatMessage.class);
+    receivedMessageCount.incrementAndGet();
+    if (deferMessage(conn, rawMessage, null, start)) {
+      return;
+    }
+    handleMessage(conn, rawMessage, start, false);
+  }
+
+  /**
+   * Handles an incoming message, see {@link #onMessage(WebSocket, String)}.
+   *
+   * @param conn a websocket connection object.
+   * @param rawMessage a raw message from the clients.
+   * @param start the value of System.nanoTime() when the message arrived.
+   * @param onDatastoreExecutor whether or not the current thread is one of the datastoreExecutor,
+   *                            on which an ENTER or a NODE_JOIN is handled right away.
+   */
+  private void handleMessage(WebSocket conn, String rawMessage, long start,
+                             boolean onDatastoreExecutor) {
+    // The bridge is absent when the chat server runs on its own, e.x. in the tests.
+    if (bridge != null) {
+      ApiProxy.setEnvironmentForCurrentThread(bridge.getBackgroundEnvironment());
+    }
+    List<PropagatedMessage> propagatedMessages = PropagateBatchMessage.readMessages(rawMessage);
+    if (propagatedMessages != null) {
+      if (getPeerUrl(conn) == null) {
+        dropPeerMessage(conn, OutgoingMessage.MessageType.PROPAGATE);
+        return;
+      }
+      // A batch from another server node, deliver the wrapped messages in order.
+      for (PropagatedMessage propagatedMessage : propagatedMessages) {
+        ChatMetrics.MESSAGES_RECEIVED.increment(OutgoingMessage.MessageType.PROPAGATE);
+        this.sendToClients(propagatedMessage);
+      }
+      ChatMetrics.LOCAL_DELIVERY_LATENCY.observeSince(start);
+      return;
+    }
+    JsonObject json = JSON_PARSER.parse(rawMessage).getAsJsonObject();
+    ChatMessage message = GSON.fromJson(json, ChatMessage.class);
+    if (message.getType() == null) {
+      dropInvalidMessage(conn, "which has no known type");
+      return;
+    }
+    ChatMetrics.MESSAGES_RECEIVED.increment(message.getType());
+    if (message.getType().equals(OutgoingMessage.MessageType.NODE_JOIN)) {
+      String webSocketUrl = GSON.fromJson(json, NodeAnnouncementMessage.class).getWebSocketUrl();
+      Peer peer = peers.get(conn);
+      if (peer == null || ! peer.webSocketUrl.equals(webSocketUrl)) {
+        dropPeerMessage(conn, message.getType());
+      } else if (! nodeRegistry.getWebSocketUrls().contains(webSocketUrl)) {
+        if (onDatastoreExecutor) {
+          join(conn, webSocketUrl);
+        } else {
+          joinAsync(conn, webSocketUrl);
+        }
+      }
+      return;
+    }
+    if (message.getType().equals(OutgoingMessage.MessageType.NODE_LEAVE)) {
+      String webSocketUrl = GSON.fromJson(json, NodeAnnouncementMessage.class).getWebSocketUrl();
+      if (isFromPeer(conn, webSocketUrl)) {
+        nodeRegistry.remove(webSocketUrl);
+      } else {
+        dropPeerMessage(conn, message.getType());
+      }
+      return;
+    }
+    if (message.getType().equals(OutgoingMessage.MessageType.ROOM_SUBSCRIBE)) {
+      RoomInterestMessage interest = GSON.fromJson(json, RoomInterestMessage.class);
+      if (interest.getRoom() == null) {
+        dropInvalidMessage(conn, "which has no room");
+      } else if (isFromPeer(conn, interest.getWebSocketUrl())) {
+        roomRoutingTable.subscribe(interest.getRoom(), interest.getWebSocketUrl());
+      } else {
+        dropPeerMessage(conn, message.getType());
+      }
+      return;
+    }
+    if (message.getType().equals(OutgoingMessage.MessageType.ROOM_UNSUBSCRIBE)) {
+      RoomInterestMessage interest = GSON.fromJson(json, RoomInterestMessage.class);
+      if (interest.getRoom() == null) {
+        dropInvalidMessage(conn, "which has no room");
+      } else if (isFromPeer(conn, interest.getWebSocketUrl())) {
+        roomRoutingTable.unsubscribe(interest.getRoom(), interest.getWebSocketUrl());
+      } else {
+        dropPeerMessage(conn, message.getType());
+      }
+      return;
+    }
+    // A client could forge any frame with the others, e.x. the raw payload of a PROPAGATE.
+    if (! CLIENT_MESSAGE_TYPES.contains(message.getType()) && getPeerUrl(conn) == null) {
+      dropPeerMessage(conn, message.getType());
+      return;
+    }
+    // Every other message is about a single chat room, and is queued with the ones of others.
+    if (message.getRoom() == null) {
+      dropInvalidMessage(conn, "which has no room");
+      return;
+    }
+    if (! isWithinRateLimit(conn, message.getRoom())) {
+      rejectMessage(conn, message);
+      return;
+    }
+    if (message.getType().equals(OutgoingMessage.MessageType.PARTICIPANTS)) {
+      sendParticipantListSnapshot(conn, message.getRoom());
+      return;
+    }
     if (message.getType().equals(OutgoingMessage.MessageType.ENTER)) {
-      // Check if there's a participant with the same name in the room.
-      Set<String> participantSet = ChatRoomParticipants.getParticipants(message.getRoom());
-      if (participantSet.contains(message.getName())) {
-        // Adding a trailing underscore until the conflict resolves.
-        String newName = message.getName() + "_";
-        while (participantSet.contains(newName)) {
-          newName = newName + "_";
+      if (onDatastoreExecutor) {
+        enter(conn, message, start);
+      } else {
+        enterAsync(conn, message, start);
+      }
+      return;
+    }
+    this.sendToClients(message);
+    ChatMetrics.LOCAL_DELIVERY_LATENCY.observeSince(start);
+  }
+
+  /**
+   * Returns the websocket URL of the server node on the other end of the given connection, if it
+   * sent {@link PeerConnectionManager#NODE_HEADER} in the handshake and the NodeRegistry has had
+   * it as an active server node since the connection opened. The connection stays trusted after
+   * the server node left, so that the messages it sends while it shuts down are still delivered.
+   *
+   * @param conn a websocket connection object.
+   * @return the websocket URL of the server node, or null if the connection is not from an
+   *         active server node.
+   */
+  private String getPeerUrl(WebSocket conn) {
+    Peer peer = peers.get(conn);
+    if (peer == null) {
+      return null;
+    }
+    if (! peer.verified) {
+      if (! nodeRegistry.getWebSocketUrls().contains(peer.webSocketUrl)) {
+        return null;
+      }
+      peer.verified = true;
+    }
+    return peer.webSocketUrl;
+  }
+
+  /**
+   * Returns whether or not the given connection is from the given active server node, so that a
+   * server node can only announce changes about itself.
+   *
+   * @param conn a websocket connection object.
+   * @param webSocketUrl the websocket URL of the server node which the message is about.
+   * @return whether or not the connection is from the given active server node.
+   */
+  private boolean isFromPeer(WebSocket conn, String webSocketUrl) {
+    return webSocketUrl != null && webSocketUrl.equals(getPeerUrl(conn));
+  }
+
+  private void dropPeerMessage(WebSocket conn, OutgoingMessage.MessageType type) {
+    LOG.warning("Dropped a " + type + " message from " + conn
+        + ", which is not a connection of an active server node.");
+  }
+
+  private void dropInvalidMessage(WebSocket conn, String reason) {
+    LOG.warning("Dropped a message from " + conn + ", " + reason + ".");
+  }
+
+  private void rejectMessage(WebSocket conn, ChatMessage message) {
+    ChatMessage systemMessage = new ChatMessage(OutgoingMessage.MessageType.SYSTEM,
+        message.getName(), message.getRoom(), "Too many messages, please slow down.");
+    outboundQueueManager.send(conn, new SharedTextFrame(GSON.toJson(systemMessage)), true);
+  }
+
+  /**
+   * Hands over the given ENTER to the datastoreExecutor of the bridge. The messages which arrive
+   * from the same connection until it completes are deferred, and handled afterwards on the same
+   * thread in the order of arrival.
+   *
+   * @param conn a websocket connection object.
+   * @param message an ENTER message from the client.
+   * @param start the value of System.nanoTime() when the message arrived.
+   */
+  private void enterAsync(final WebSocket conn, final ChatMessage message, final long start) {
+    executeDeferring(conn, new Runnable() {
+      @Override
+      public void run() {
+        enter(conn, message, start);
+      }
+    });
+  }
+
+  /**
+   * Hands over the verification of the given NODE_JOIN to the datastoreExecutor of the bridge.
+   * The messages and the binary frames which arrive from the same connection until it completes
+   * are deferred, so that the propagate batches of the new server node are not dropped.
+   *
+   * @param conn a websocket connection object from another server node.
+   * @param webSocketUrl the websocket URL of the server node which announced that it joined.
+   */
+  private void joinAsync(final WebSocket conn, final String webSocketUrl) {
+    executeDeferring(conn, new Runnable() {
+      @Override
+      public void run() {
+        join(conn, webSocketUrl);
+      }
+    });
+  }
+
+  /**
+   * Runs the given task on the datastoreExecutor of the bridge, and then handles the messages
+   * which were deferred from the given connection in the meantime on the same thread.
+   *
+   * @param conn a websocket connection object.
+   * @param task a task which may block on the datastore.
+   */
+  private void executeDeferring(final WebSocket conn, final Runnable task) {
+    final List<DeferredMessage> deferred = new ArrayList<>();
+    deferredMessages.put(conn, deferred);
+    bridge.datastoreExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          LOG.warning(Throwables.getStackTraceAsString(e));
         }
-        // New name decided.
-        message = new ChatMessage(message.getType(), newName, message.getRoom(),
-            message.getMessage());
-        ChatMessage systemMessage = new ChatMessage(OutgoingMessage.MessageType.SYSTEM, newName,
-            message.getRoom(), "Changed the name to " + newName + ".");
-        conn.send(GSON.toJson(systemMessage));
+        handleDeferredMessages(conn, deferred);
       }
-      metaInfoManager.addConnection(conn, message.getName(), message.getRoom());
-      if (! updateAndSendParticipantListQueue.contains(message.getRoom())) {
-        updateAndSendParticipantListQueue.add(message.getRoom());
+    });
+  }
+
+  /**
+   * Defers the given message if an ENTER or a NODE_JOIN from the same connection is still being
+   * handled. At most {@link #CONNECTION_BURST} messages are deferred from a client, the others
+   * would exceed the rate limit of the connection anyway, so they are rejected right away. The
+   * messages from another server node are never rejected, since its NODE_JOIN takes only a
+   * single datastore read.
+   *
+   * @param conn a websocket connection object.
+   * @param rawMessage a raw message from the client, or null for a binary frame.
+   * @param bytes a binary frame from another server node, or null for a text message.
+   * @param start the value of System.nanoTime() when the message arrived.
+   * @return whether or not the message was deferred or rejected.
+   */
+  private boolean deferMessage(WebSocket conn, String rawMessage, ByteBuffer bytes, long start) {
+    List<DeferredMessage> deferred = deferredMessages.get(conn);
+    if (deferred == null) {
+      return false;
+    }
+    synchronized (deferred) {
+      if (deferredMessages.get(conn) != deferred) {
+        // The ENTER and the deferred messages have been handled in the meantime.
+        return false;
+      }
+      if (deferred.size() >= CONNECTION_BURST && ! peers.containsKey(conn)) {
+        rejectedByConnectionLimit.incrementAndGet();
+        if (rawMessage != null) {
+          rejectMessage(conn, GSON.fromJson(rawMessage, ChatMessage.class));
+        }
+        return true;
+      }
+      if (bytes != null) {
+        // The frame may not outlive onMessage, so keep a copy of it.
+        ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+        copy.put(bytes.duplicate());
+        copy.flip();
+        bytes = copy;
+      }
+      deferred.add(new DeferredMessage(rawMessage, bytes, start));
+      return true;
+    }
+  }
+
+  /**
+   * Handles the messages deferred by {@link #deferMessage} in order, until none is left.
+   *
+   * @param conn a websocket connection object.
+   * @param deferred the deferred messages of the connection.
+   */
+  private void handleDeferredMessages(WebSocket conn, List<DeferredMessage> deferred) {
+    while (true) {
+      DeferredMessage deferredMessage;
+      synchronized (deferred) {
+        if (deferred.isEmpty()) {
+          deferredMessages.remove(conn, deferred);
+          return;
+        }
+        deferredMessage = deferred.remove(0);
+      }
+      try {
+        if (deferredMessage.bytes != null) {
+          handleBinaryMessage(conn, deferredMessage.bytes, deferredMessage.receivedNanos);
+        } else {
+          handleMessage(conn, deferredMessage.rawMessage, deferredMessage.receivedNanos, true);
+        }
+      } catch (RuntimeException e) {
+        LOG.warning(Throwables.getStackTraceAsString(e));
+      }
+    }
+  }
+
+  /**
+   * Lets the client of the given connection join the chat room of the given ENTER message. This
+   * may block on the datastore for the participant list, so it runs on the datastoreExecutor.
+   *
+   * @param conn a websocket connection object.
+   * @param message an ENTER message from the client.
+   * @param start the value of System.nanoTime() when the message arrived.
+   */
+  private void enter(WebSocket conn, ChatMessage message, long start) {
+    // Check if there's a participant with the same name in the room.
+    Set<String> participantSet = participantDirectory.getParticipants(message.getRoom());
+    if (participantSet.contains(message.getName())) {
+      // Adding a trailing underscore until the conflict resolves.
+      String newName = message.getName() + "_";
+      while (participantSet.contains(newName)) {
+        newName = newName + "_";
+      }
+      // New name decided.
+      message = new ChatMessage(message.getType(), newName, message.getRoom(),
+          message.getMessage());
+      ChatMessage systemMessage = new ChatMessage(OutgoingMessage.MessageType.SYSTEM, newName,
+          message.getRoom(), "Changed the name to " + newName + ".");
+      outboundQueueManager.send(conn, new SharedTextFrame(GSON.toJson(systemMessage)), true);
+    }
+    RoomHistory.RoomBuffer history = roomHistory.getBuffer(message.getRoom());
+    // Replay the recent messages atomically with joining, see sendToLocalClients.
+    synchronized (history) {
+      for (SharedTextFrame frame : history.getFrames()) {
+        // The replay is the first thing to drop for a slow client.
+        outboundQueueManager.send(conn, frame, false);
       }
+      metaInfoManager.addConnection(conn, message.getName(), message.getRoom());
+    }
+    if (! conn.isOpen()) {
+      // Closed while we were loading the participant list, onClose may have missed it.
+      metaInfoManager.removeConnection(conn);
+      return;
     }
+    try {
+      bridge.updateRoomSubscription(message.getRoom());
+    } catch (IOException e) {
+      LOG.warning(Throwables.getStackTraceAsString(e));
+    }
+    participantDirectory.addParticipant(message.getRoom(), message.getName());
+    sendParticipantListSnapshot(conn, message.getRoom());
+    requestParticipantListUpdate(message.getRoom());
     this.sendToClients(message);
+    ChatMetrics.LOCAL_DELIVERY_LATENCY.observeSince(start);
+  }
+
+  /**
+   * Lets the server node which announced that it joined over the given connection into the
+   * NodeRegistry, if it has registered itself in the datastore. This blocks on the datastore, so
+   * it runs on the datastoreExecutor.
+   *
+   * @param conn a websocket connection object from another server node.
+   * @param webSocketUrl the websocket URL of the server node which announced that it joined.
+   */
+  private void join(WebSocket conn, String webSocketUrl) {
+    long start = System.nanoTime();
+    WebSocketServerNode serverNode =
+        ofy().load().key(WebSocketServerNode.getKeyFromWebSocketUrl(webSocketUrl)).get();
+    ChatMetrics.DATASTORE_LOAD_SERVER_NODES.observeSince(start);
+    if (serverNode == null) {
+      LOG.warning(conn + " announced a server node which is not registered: " + webSocketUrl);
+      return;
+    }
+    nodeRegistry.add(serverNode);
+  }
+
+  /**
+   * Handles a propagate batch in the binary encoding from another server node, and invokes
+   * sendToClient method with every wrapped message in the order of the batch. The batch is
+   * decompressed first if it was compressed. The frames which arrive while the NODE_JOIN of the
+   * server node is being verified are deferred until it completes.
+   *
+   * @param conn a websocket connection object from another server node.
+   * @param bytes a frame in the binary encoding.
+   */
+  @Override
+  public void onMessage(WebSocket conn, ByteBuffer bytes) {
+    long start = System.nanoTime();
+    receivedMessageCount.incrementAndGet();
+    if (deferMessage(conn, null, bytes, start)) {
+      return;
+    }
+    handleBinaryMessage(conn, bytes, start);
+  }
+
+  /**
+   * Handles a binary frame, see {@link #onMessage(WebSocket, ByteBuffer)}.
+   *
+   * @param conn a websocket connection object from another server node.
+   * @param bytes a frame in the binary encoding.
+   * @param start the value of System.nanoTime() when the frame arrived.
+   */
+  private void handleBinaryMessage(WebSocket conn, ByteBuffer bytes, long start) {
+    BinaryPropagateCodec.Decoder decoder = peerDecoders.get(conn);
+    if (decoder == null) {
+      LOG.warning(conn + " sent a binary frame without negotiating the binary encoding.");
+      return;
+    }
+    if (getPeerUrl(conn) == null) {
+      dropPeerMessage(conn, OutgoingMessage.MessageType.PROPAGATE);
+      return;
+    }
+    ApiProxy.setEnvironmentForCurrentThread(bridge.getBackgroundEnvironment());
+    if (bytes.hasRemaining()
+        && bytes.get(bytes.position()) == BinaryPropagateCodec.DEFLATED_FRAME) {
+      bytes.get();
+      bytes = FrameCompressor.decompress(bytes);
+    }
+    List<PropagatedMessage> propagatedMessages;
+    // The room dictionary of the connection must be updated in the order of the frames.
+    synchronized (decoder) {
+      propagatedMessages = decoder.decode(bytes);
+    }
+    for (PropagatedMessage propagatedMessage : propagatedMessages) {
+      ChatMetrics.MESSAGES_RECEIVED.increment(OutgoingMessage.MessageType.PROPAGATE);
+      this.sendToClients(propagatedMessage);
+    }
+    ChatMetrics.LOCAL_DELIVERY_LATENCY.observeSince(start);
+  }
+
+  /**
+   * Returns whether or not a message from the given connection to the given chat room is within
+   * the rate limits of both the connection and the chat room. This method doesn't allocate any
+   * object, except for the first message to a chat room.
+   *
+   * @param conn a websocket connection object.
+   * @param room a name of the chat room.
+   * @return whether or not the message is within the rate limits.
+   */
+  private boolean isWithinRateLimit(WebSocket conn, String room) {
+    TokenBucket connectionRateLimit = connectionRateLimits.get(conn);
+    if (connectionRateLimit != null && ! connectionRateLimit.tryAcquire()) {
+      rejectedByConnectionLimit.incrementAndGet();
+      return false;
+    }
+    if (room == null) {
+      return true;
+    }
+    TokenBucket roomRateLimit = roomRateLimits.get(room);
+    if (roomRateLimit == null) {
+      TokenBucket newRoomRateLimit = new TokenBucket(ROOM_MESSAGES_PER_SECOND, ROOM_BURST);
+      roomRateLimit = roomRateLimits.putIfAbsent(room, newRoomRateLimit);
+      if (roomRateLimit == null) {
+        roomRateLimit = newRoomRateLimit;
+      }
+    }
+    if (! roomRateLimit.tryAcquire()) {
+      rejectedByRoomLimit.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Removes the rate limits of the chat rooms without any connection on this server node.
+   */
+  private void removeIdleRoomRateLimits() {
+    for (String room : roomRateLimits.keySet()) {
+      if (metaInfoManager.getConnections(room).isEmpty()) {
+        roomRateLimits.remove(room);
+      }
+    }
+  }
+
+  /**
+   * Sends the last distributed version of the full participant list of the given chat room to
+   * the given connection, if any. Each version is encoded only once, however many clients
+   * request it.
+   *
+   * @param conn a websocket connection object.
+   * @param room a name of the chat room.
+   */
+  private void sendParticipantListSnapshot(WebSocket conn, String room) {
+    ParticipantListMessage snapshot = participantListSnapshots.get(room);
+    if (snapshot != null) {
+      SharedTextFrame frame = participantListFrames.get(snapshot);
+      if (frame == null) {
+        // Two racing requests may both encode it, and either frame is fine to keep.
+        frame = new SharedTextFrame(snapshot.toJson(GSON));
+        participantListFrames.put(snapshot, frame);
+      }
+      outboundQueueManager.send(conn, frame, true);
+    }
   }
 
   /**
@@ -424,32 +1696,143 @@ public class ChatSocketServer extends WebSocketServer {
     LOG.warning(Throwables.getStackTraceAsString(ex));
   }
 
+  /**
+   * Closes the connections, waits for them to go away for the given timeout at most, and then
+   * stops the server.
+   *
+   * <p>Java-WebSocket 1.3.0 closes the connections while holding the lock of connections(), and
+   * a websocket thread which is closing one of them at the same time waits for that lock while
+   * holding the lock of the connection, so the two deadlock. Closing them here without holding
+   * the lock leaves nothing for the server to close in most cases.</p>
+   *
+   * @param timeout the time in milliseconds to wait for the connections to close.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @Override
+  public void stop(int timeout) throws IOException, InterruptedException {
+    Collection<WebSocket> connections = connections();
+    List<WebSocket> openConnections;
+    synchronized (connections) {
+      openConnections = new ArrayList<>(connections);
+    }
+    for (WebSocket connection : openConnections) {
+      connection.close(CloseFrame.GOING_AWAY);
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    while (System.currentTimeMillis() < deadline) {
+      synchronized (connections) {
+        if (connections.isEmpty()) {
+          break;
+        }
+      }
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    super.stop(timeout);
+  }
+
   /**
    * Sends <var>message</var> to currently connected WebSocket clients in the same room as the
    * message.
    *
+   * <p>A message propagated from another server node is a PropagatedMessage, whose header is
+   * enough to keep the ParticipantDirectory up to date, so its serialized form is delivered to
+   * the clients without being parsed.</p>
+   *
    * @param message An object representing a message to send across the network.
    */
   public void sendToClients(OutgoingMessage message) {
     if (! message.getType().equals(OutgoingMessage.MessageType.PROPAGATE)) {
-      propagateQueue.add(message);
-    } else {
-      ParticipantListMessage participantListMessage = GSON.fromJson(message.toJson(GSON),
-          ParticipantListMessage.class);
-      if (participantListMessage.getType().equals(OutgoingMessage.MessageType.PARTICIPANTS)) {
+      getPropagateQueue(message.getRoom()).add(new PropagateRequest(message));
+    } else if (message instanceof PropagatedMessage) {
+      PropagatedMessage propagatedMessage = (PropagatedMessage) message;
+      OutgoingMessage.MessageType originalType = propagatedMessage.getOriginalType();
+      if (OutgoingMessage.MessageType.PARTICIPANTS.equals(originalType)) {
         LOG.info("ParticipantList arrived for the room:" + message.getRoom());
+      } else if (OutgoingMessage.MessageType.ENTER.equals(originalType)) {
+        participantDirectory.addParticipant(message.getRoom(), propagatedMessage.getName());
+        requestParticipantListUpdateIfHosted(message.getRoom());
+      } else if (OutgoingMessage.MessageType.LEAVE.equals(originalType)) {
+        participantDirectory.removeParticipant(message.getRoom(), propagatedMessage.getName());
+        requestParticipantListUpdateIfHosted(message.getRoom());
+      }
+    }
+    sendToLocalClients(message);
+  }
+
+  private void requestParticipantListUpdateIfHosted(String room) {
+    if (! metaInfoManager.getConnections(room).isEmpty()) {
+      requestParticipantListUpdate(room);
+    }
+  }
+
+  /**
+   * Sends <var>message</var> to the WebSocket clients connected to this server node in the same
+   * room as the message, without propagating it to other server nodes.
+   *
+   * @param message An object representing a message to send to the clients.
+   */
+  private void sendToLocalClients(OutgoingMessage message) {
+    // Only the connections in the room of the message are visited, without locking connections().
+    Set<WebSocket> connections = metaInfoManager.getConnections(message.getRoom());
+    if (connections.isEmpty()) {
+      return;
+    }
+    // Serialize the message only once and share the encoded frame among the recipients.
+    SharedTextFrame frame = new SharedTextFrame(message.toJson(GSON));
+    OutgoingMessage.MessageType type = message instanceof PropagatedMessage
+        ? ((PropagatedMessage) message).getOriginalType() : message.getType();
+    // A slow client loses the membership changes first, it can recover them from a snapshot.
+    boolean critical = ! OutgoingMessage.MessageType.ENTER.equals(type)
+        && ! OutgoingMessage.MessageType.LEAVE.equals(type)
+        && ! OutgoingMessage.MessageType.PARTICIPANTS_DELTA.equals(type);
+    if (OutgoingMessage.MessageType.MESSAGE.equals(type)
+        || OutgoingMessage.MessageType.ENTER.equals(type)
+        || OutgoingMessage.MessageType.LEAVE.equals(type)) {
+      RoomHistory.RoomBuffer history = roomHistory.getBuffer(message.getRoom());
+      // Recording and delivering atomically, so that a new participant either gets this message
+      // in the replay or from here, but not both.
+      synchronized (history) {
+        history.add(frame);
+        sendToConnections(connections, frame, critical);
       }
+    } else {
+      sendToConnections(connections, frame, critical);
     }
-    Collection<WebSocket> webSocketConnections = connections();
-    synchronized (webSocketConnections) {
-      for (WebSocket connection : webSocketConnections) {
-        MetaInfoManager.ConnectionInfo info = metaInfoManager.getConnectionInfo(connection);
-        if (info != null) {
-          if (message.shouldSendTo(info.getRoom())) {
-            connection.send(message.toJson(GSON));
+  }
+
+  /**
+   * Sends the given frame to the given open connections, or its compressed form to the ones who
+   * opted in to the compression, through their bounded outbound queues.
+   *
+   * @param connections the websocket connections in a chat room.
+   * @param frame an encoded message.
+   * @param critical whether or not a slow client should keep the message longer than the
+   *                 non-critical ones.
+   */
+  private void sendToConnections(Set<WebSocket> connections, SharedTextFrame frame,
+                                 boolean critical) {
+    // Compress it only once as well, when the first recipient who opted in shows up.
+    SharedBinaryFrame compressedFrame = null;
+    boolean compressed = false;
+    for (WebSocket connection : connections) {
+      if (! connection.isOpen()) {
+        continue;
+      }
+      if (! compressedConnections.isEmpty() && compressedConnections.contains(connection)) {
+        if (! compressed) {
+          compressed = true;
+          byte[] payload = browserCompressor.compress(frame.getPayloadData());
+          if (payload != null) {
+            compressedFrame = new SharedBinaryFrame(payload);
           }
         }
+        if (compressedFrame != null) {
+          outboundQueueManager.send(connection, compressedFrame, critical);
+          continue;
+        }
       }
+      outboundQueueManager.send(connection, frame, critical);
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class that schedules the participant list updates of the chat rooms.
+ *
+ * <p>A chat room marked as dirty becomes available to {@link #take()} after the debounce
+ * window. Marking the chat room again before that is a no-op, so a burst of joins and leaves in
+ * a chat room collapses into a single update. A chat room is never handed to two workers at the
+ * same time; if it becomes ready while being updated, it waits for another debounce window.</p>
+ */
+public class DirtyRoomScheduler {
+
+  /**
+   * A dirty chat room waiting for the end of its debounce window.
+   */
+  private static class DirtyRoom implements Delayed {
+
+    private final String room;
+
+    private final long deadlineNanos;
+
+    DirtyRoom(String room, long deadlineNanos) {
+      this.room = room;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+
+  private final long debounceNanos;
+
+  private final Set<String> dirtyRooms;
+
+  private final Set<String> updatingRooms;
+
+  private final DelayQueue<DirtyRoom> queue;
+
+  /**
+   * Creates a DirtyRoomScheduler with the given debounce window.
+   *
+   * @param debounceMillis the time in milliseconds to wait for more changes in a dirty chat room.
+   */
+  public DirtyRoomScheduler(long debounceMillis) {
+    this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+    this.dirtyRooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.updatingRooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.queue = new DelayQueue<>();
+  }
+
+  /**
+   * Marks the given chat room as dirty, unless it is already waiting for an update.
+   *
+   * @param room a name of the chat room.
+   */
+  public void markDirty(String room) {
+    if (dirtyRooms.add(room)) {
+      queue.add(new DirtyRoom(room, System.nanoTime() + debounceNanos));
+    }
+  }
+
+  /**
+   * Blocks until a dirty chat room passes its debounce window, and returns it. The caller must
+   * call {@link #complete(String)} after updating the chat room.
+   *
+   * @return a name of the chat room to update.
+   * @throws InterruptedException when interrupted while waiting.
+   */
+  public String take() throws InterruptedException {
+    while (true) {
+      DirtyRoom dirtyRoom = queue.take();
+      if (updatingRooms.add(dirtyRoom.room)) {
+        dirtyRooms.remove(dirtyRoom.room);
+        return dirtyRoom.room;
+      }
+      // Another worker is updating the chat room, try again after the debounce window.
+      queue.add(new DirtyRoom(dirtyRoom.room, System.nanoTime() + debounceNanos));
+    }
+  }
+
+  /**
+   * Marks the update of the given chat room as completed.
+   *
+   * @param room a name of the chat room returned by {@link #take()}.
+   */
+  public void complete(String room) {
+    updatingRooms.remove(room);
+  }
+
+  /**
+   * Returns the number of the dirty chat rooms waiting for an update.
+   *
+   * @return the number of the dirty chat rooms waiting for an update.
+   */
+  public int size() {
+    return dirtyRooms.size();
+  }
+}
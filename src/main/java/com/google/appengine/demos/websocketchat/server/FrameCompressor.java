@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A class that compresses the websocket payloads with raw DEFLATE (RFC 1951), and keeps track of
+ * the compression ratio achieved.
+ *
+ * <p>A payload smaller than the threshold is not compressed, because the overhead of DEFLATE
+ * outweighs the savings for a short chat message. A payload which doesn't get smaller is not
+ * compressed either. Each thread reuses its own Deflater.</p>
+ */
+public class FrameCompressor {
+
+  private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+  };
+
+  /**
+   * The minimum size of the payloads to compress in bytes, unless specified otherwise.
+   */
+  public static final int DEFAULT_THRESHOLD_BYTES =
+      Integer.getInteger("websocketchat.compression.thresholdBytes", 512);
+
+  private static final int MAX_DECOMPRESSED_BYTES = 16 * 1024 * 1024;
+
+  private final String name;
+
+  private final int thresholdBytes;
+
+  private final AtomicLong compressedFrames;
+
+  private final AtomicLong uncompressedFrames;
+
+  private final AtomicLong bytesBeforeCompression;
+
+  private final AtomicLong bytesAfterCompression;
+
+  /**
+   * Creates a FrameCompressor with the given threshold.
+   *
+   * @param name a name of this compressor, used in the statistics.
+   * @param thresholdBytes the minimum size of the payloads to compress in bytes.
+   */
+  public FrameCompressor(String name, int thresholdBytes) {
+    this.name = name;
+    this.thresholdBytes = thresholdBytes;
+    this.compressedFrames = new AtomicLong();
+    this.uncompressedFrames = new AtomicLong();
+    this.bytesBeforeCompression = new AtomicLong();
+    this.bytesAfterCompression = new AtomicLong();
+  }
+
+  /**
+   * Compresses the given payload with raw DEFLATE.
+   *
+   * @param payload a payload to compress.
+   * @return the compressed payload, or null when the payload is smaller than the threshold or
+   *         doesn't get smaller.
+   */
+  public byte[] compress(byte[] payload) {
+    return compress(payload, 0, payload.length);
+  }
+
+  /**
+   * Compresses the remaining bytes of the given payload with raw DEFLATE, without changing the
+   * position of the given buffer.
+   *
+   * @param payload a payload to compress.
+   * @return the compressed payload, or null when the payload is smaller than the threshold or
+   *         doesn't get smaller.
+   */
+  public byte[] compress(ByteBuffer payload) {
+    if (payload.remaining() < thresholdBytes) {
+      uncompressedFrames.incrementAndGet();
+      return null;
+    }
+    byte[] bytes = new byte[payload.remaining()];
+    payload.duplicate().get(bytes);
+    return compress(bytes, 0, bytes.length);
+  }
+
+  private byte[] compress(byte[] payload, int offset, int length) {
+    if (length < thresholdBytes) {
+      uncompressedFrames.incrementAndGet();
+      return null;
+    }
+    Deflater deflater = DEFLATER.get();
+    deflater.reset();
+    deflater.setInput(payload, offset, length);
+    deflater.finish();
+    byte[] buffer = new byte[length];
+    int compressedLength = 0;
+    while (! deflater.finished() && compressedLength < buffer.length) {
+      compressedLength += deflater.deflate(buffer, compressedLength,
+          buffer.length - compressedLength);
+    }
+    if (! deflater.finished()) {
+      // Not worth it, the payload doesn't get smaller.
+      uncompressedFrames.incrementAndGet();
+      return null;
+    }
+    compressedFrames.incrementAndGet();
+    bytesBeforeCompression.addAndGet(length);
+    bytesAfterCompression.addAndGet(compressedLength);
+    return Arrays.copyOf(buffer, compressedLength);
+  }
+
+  /**
+   * Decompresses the remaining bytes of the given buffer, which were compressed with raw
+   * DEFLATE.
+   *
+   * @param compressed a compressed payload.
+   * @return the decompressed payload.
+   * @throws IllegalArgumentException when the payload is not valid DEFLATE data, or too large
+   *         after the decompression.
+   */
+  public static ByteBuffer decompress(ByteBuffer compressed) {
+    // Raw DEFLATE needs an extra dummy byte at the end of the input.
+    byte[] input = new byte[compressed.remaining() + 1];
+    compressed.get(input, 0, input.length - 1);
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(input);
+      ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+      byte[] buffer = new byte[4096];
+      while (! inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Truncated compressed payload.");
+        }
+        output.write(buffer, 0, length);
+        if (output.size() > MAX_DECOMPRESSED_BYTES) {
+          throw new IllegalArgumentException("Decompressed payload is too large.");
+        }
+      }
+      return ByteBuffer.wrap(output.toByteArray());
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Malformed compressed payload.", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Returns the compression ratio achieved so far, which is the total size of the compressed
+   * payloads before the compression divided by the size after the compression.
+   *
+   * @return the compression ratio achieved so far, or 1.0 when nothing was compressed.
+   */
+  public double getCompressionRatio() {
+    long after = bytesAfterCompression.get();
+    return after == 0 ? 1.0 : (double) bytesBeforeCompression.get() / after;
+  }
+
+  /**
+   * Returns the number of the payloads compressed so far.
+   *
+   * @return the number of the payloads compressed so far.
+   */
+  public long getCompressedFrames() {
+    return compressedFrames.get();
+  }
+
+  /**
+   * Returns the number of the payloads which were not compressed because they were too small or
+   * didn't get smaller.
+   *
+   * @return the number of the payloads which were not compressed.
+   */
+  public long getUncompressedFrames() {
+    return uncompressedFrames.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s compression: ratio=%.2f, compressedFrames=%d, "
+        + "uncompressedFrames=%d, bytesBefore=%d, bytesAfter=%d", name, getCompressionRatio(),
+        compressedFrames.get(), uncompressedFrames.get(), bytesBeforeCompression.get(),
+        bytesAfterCompression.get());
+  }
+}
@@ -16,28 +16,41 @@
 
 package com.google.appengine.demos.websocketchat.server;
 
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Multiset;
 import org.java_websocket.WebSocket;
 
-import java.util.Map;
+import java.util.Collections;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class that manages connections from the clients.
+ *
+ * <p>Every method is thread safe, so the connections can be added and removed from any number of
+ * websocket and datastore threads. Neither the writers nor the readers of a chat room take any
+ * lock.</p>
+ *
+ * <p>The ConnectionInfo is looked up by the identity of the websocket connection, so the lookup
+ * doesn't allocate anything, and two clients behind the same address never share it.</p>
  */
 public class MetaInfoManager {
 
   /**
    * A class that holds the name of the participant and the name of the chat room.
    */
-  public class ConnectionInfo {
+  public static class ConnectionInfo {
 
-    private String name;
+    private final String name;
 
-    private String room;
+    private final String room;
 
     /**
      * Creates a ConnectionInfo instance with the given name and room.
@@ -69,53 +82,193 @@ public class MetaInfoManager {
     }
   }
 
-  private static final Set<String> EMPTY_PARTICIPANT_SET = ImmutableSet.of();
+  /**
+   * An immutable snapshot of the names of the participants in a chat room on this server node.
+   * The version is incremented on every change of the names.
+   */
+  public static final class ParticipantSnapshot {
+
+    private final long version;
+
+    private final ImmutableSortedSet<String> participants;
+
+    ParticipantSnapshot(long version, ImmutableSortedSet<String> participants) {
+      this.version = version;
+      this.participants = participants;
+    }
+
+    /**
+     * Returns the version of this snapshot, which is 0 for a chat room without any participant
+     * so far.
+     *
+     * @return the version of this snapshot.
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * Returns the names of the participants in their natural order.
+     *
+     * @return an immutable set of the names of the participants.
+     */
+    public Set<String> getParticipants() {
+      return participants;
+    }
+  }
+
+  /**
+   * The connections and the participants of a single chat room.
+   *
+   * <p>The connections are kept in a concurrent set, so that the senders can iterate it without
+   * any lock. The names are counted per connection in a concurrent multiset, and the version is
+   * incremented after a name appears or disappears, so the writers never lock anything. The
+   * sorted snapshot is built by the first reader of a new version, without blocking the writers,
+   * so a burst of joins and leaves doesn't copy the participants on every change.</p>
+   *
+   * <p>A snapshot contains every change up to its version and possibly some later ones, which
+   * is enough to tell whether the participants changed since a version.</p>
+   */
+  private static final class RoomMembership {
+
+    private final Set<WebSocket> connections =
+        Collections.newSetFromMap(new ConcurrentHashMap<WebSocket, Boolean>());
+
+    /* How many connections use each name. */
+    private final Multiset<String> names = ConcurrentHashMultiset.create();
+
+    private final AtomicLong version = new AtomicLong();
+
+    private volatile ParticipantSnapshot snapshot = EMPTY_SNAPSHOT;
+
+    void add(WebSocket connection, String name) {
+      connections.add(connection);
+      if (names.add(name, 1) == 0) {
+        version.incrementAndGet();
+      }
+    }
+
+    void remove(WebSocket connection, String name) {
+      connections.remove(connection);
+      if (names.remove(name, 1) == 1) {
+        version.incrementAndGet();
+      }
+    }
 
-  private static String createIdFromConnection(WebSocket connection) {
-    return connection.getRemoteSocketAddress().getAddress().getHostAddress() + ":"
-        + connection.getRemoteSocketAddress().getPort();
+    ParticipantSnapshot getSnapshot() {
+      ParticipantSnapshot current = snapshot;
+      long latestVersion = version.get();
+      if (current.getVersion() != latestVersion) {
+        current = new ParticipantSnapshot(latestVersion,
+            ImmutableSortedSet.copyOf(names.elementSet()));
+        snapshot = current;
+      }
+      return current;
+    }
   }
 
-  private Map<String, ConnectionInfo> connectionMap;
+  private static final ParticipantSnapshot EMPTY_SNAPSHOT =
+      new ParticipantSnapshot(0L, ImmutableSortedSet.<String>of());
 
-  private Map<String, Set<String>> participantMap;
+  private static final Set<WebSocket> EMPTY_CONNECTION_SET = ImmutableSet.of();
+
+  /* Shares a single instance of each name of the participants and the chat rooms. */
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+  /* Compares the connections by identity, and forgets the ones which are never removed. */
+  private final ConcurrentMap<WebSocket, ConnectionInfo> connectionMap;
+
+  private final ConcurrentMap<String, RoomMembership> roomMembershipMap;
 
   /**
    * Creates a MetaInfoManager with the initialized map objects.
    */
   public MetaInfoManager() {
-    connectionMap = new ConcurrentHashMap<>();
-    participantMap = new ConcurrentHashMap<>();
+    connectionMap = new MapMaker().weakKeys().makeMap();
+    roomMembershipMap = new ConcurrentHashMap<>();
+  }
+
+  private RoomMembership getOrCreateRoomMembership(String room) {
+    RoomMembership membership = roomMembershipMap.get(room);
+    if (membership == null) {
+      RoomMembership newMembership = new RoomMembership();
+      membership = roomMembershipMap.putIfAbsent(room, newMembership);
+      if (membership == null) {
+        membership = newMembership;
+      }
+    }
+    return membership;
+  }
+
+  /**
+   * Returns a set of the websocket connections in a given chat room.
+   *
+   * <p>The returned set is a live view backed by a concurrent set, so it can be iterated without
+   * any lock while connections are added or removed.</p>
+   *
+   * @param room a name of the chat room, or null, which has no connection.
+   * @return a set of the websocket connections in a given chat room.
+   */
+  public Set<WebSocket> getConnections(String room) {
+    RoomMembership membership = room == null ? null : roomMembershipMap.get(room);
+    if (membership == null) {
+      return EMPTY_CONNECTION_SET;
+    }
+    return Collections.unmodifiableSet(membership.connections);
+  }
+
+  /**
+   * Returns the chat rooms which have ever had a websocket connection on this server node. Some
+   * of them may have no connections anymore.
+   *
+   * @return an unmodifiable live view of the names of the chat rooms.
+   */
+  public Set<String> getRooms() {
+    return Collections.unmodifiableSet(roomMembershipMap.keySet());
   }
 
   /**
    * Returns a set of the names of the participants in a given chat room.
    *
    * @param room a name of the chat room.
-   * @return a set of the names of the participants in a given chat room.
+   * @return an immutable set of the names of the participants in a given chat room.
    */
   public Set<String> getParticipantList(String room) {
-    if (participantMap.containsKey(room)) {
-      return participantMap.get(room);
-    } else {
-      return EMPTY_PARTICIPANT_SET;
+    return getParticipantSnapshot(room).getParticipants();
+  }
+
+  /**
+   * Returns the latest snapshot of the participants in a given chat room, without blocking.
+   *
+   * @param room a name of the chat room.
+   * @return the latest snapshot of the participants in a given chat room.
+   */
+  public ParticipantSnapshot getParticipantSnapshot(String room) {
+    RoomMembership membership = roomMembershipMap.get(room);
+    if (membership == null) {
+      return EMPTY_SNAPSHOT;
     }
+    return membership.getSnapshot();
   }
 
   /**
-   * Adds a map entry to the participantMap property with a connection identifier as the key and
-   * ConnectionInfo with the given name and room as the value.
+   * Adds a map entry to the connectionMap property with the connection as the key and
+   * ConnectionInfo with the given name and room as the value, and adds the connection to the
+   * membership of the given room. If the connection had entered another chat room, it leaves
+   * that one. The name and the room are interned here once for the lifetime of the connection.
    *
    * @param connection a websocket connection object.
    * @param name a name of the participant.
    * @param room a name of the chatroom.
    */
   public void addConnection(WebSocket connection, String name, String room) {
-    connectionMap.put(createIdFromConnection(connection), new ConnectionInfo(name, room));
-    if (! participantMap.containsKey(room)) {
-      participantMap.put(room, new TreeSet<String>());
+    name = NAMES.intern(name);
+    room = NAMES.intern(room);
+    ConnectionInfo previous = connectionMap.put(connection, new ConnectionInfo(name, room));
+    if (previous != null) {
+      getOrCreateRoomMembership(previous.getRoom()).remove(connection, previous.getName());
     }
-    participantMap.get(room).add(name);
+    getOrCreateRoomMembership(room).add(connection, name);
   }
 
   /**
@@ -124,19 +277,25 @@ public class MetaInfoManager {
    * @return a ConnectionInfo object corresponding to a given websocket connection.
    */
   public ConnectionInfo getConnectionInfo(WebSocket connection) {
-    return connectionMap.get(createIdFromConnection(connection));
+    return connectionMap.get(connection);
   }
 
   /**
-   * Removes a ConnectionInfo associated to a given websocket connection.
+   * Removes a ConnectionInfo associated to a given websocket connection. Only one of the
+   * concurrent callers gets the removed ConnectionInfo.
    *
    * @param connection a websocket connection object.
+   * @return the removed ConnectionInfo, or null if the connection has not entered a chat room.
    */
-  public void removeConnection(WebSocket connection) {
-    ConnectionInfo connectionInfo = getConnectionInfo(connection);
-    if (participantMap.containsKey(connectionInfo.getRoom())) {
-      participantMap.get(connectionInfo.getRoom()).remove(connectionInfo.getName());
+  public ConnectionInfo removeConnection(WebSocket connection) {
+    ConnectionInfo connectionInfo = connectionMap.remove(connection);
+    if (connectionInfo == null) {
+      return null;
+    }
+    RoomMembership membership = roomMembershipMap.get(connectionInfo.getRoom());
+    if (membership != null) {
+      membership.remove(connection, connectionInfo.getName());
     }
-    connectionMap.remove(createIdFromConnection(connection));
+    return connectionInfo;
   }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.demos.websocketchat.domain.ServerNodeLoad;
+import com.google.appengine.demos.websocketchat.domain.WebSocketServerNode;
+import com.google.appengine.demos.websocketchat.metrics.ChatMetrics;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * A class that caches the active server nodes and their load in memory.
+ *
+ * <p>The cache is refreshed from the WebSocketServerNode and ServerNodeLoad entities in the
+ * datastore by {@link #refresh()}, which the bridge calls on a schedule, and is updated
+ * immediately when another server node announces that it joined or left. The listeners are
+ * notified every time the set of the server nodes changes.</p>
+ */
+public class NodeRegistry {
+
+  private static final Logger LOG = Logger.getLogger(NodeRegistry.class.getName());
+
+  /**
+   * A listener which is notified when the set of the active server nodes changes.
+   */
+  public interface Listener {
+
+    /**
+     * Called when the set of the active server nodes changes.
+     *
+     * @param webSocketUrls the websocket URLs of the active server nodes.
+     */
+    void onNodesChanged(Set<String> webSocketUrls);
+  }
+
+  private volatile Map<String, WebSocketServerNode> nodes;
+
+  private volatile Map<String, ServerNodeLoad> loads;
+
+  private final List<Listener> listeners;
+
+  /**
+   * Creates an empty NodeRegistry.
+   */
+  public NodeRegistry() {
+    nodes = ImmutableMap.of();
+    loads = ImmutableMap.of();
+    listeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Adds a listener which is notified when the set of the active server nodes changes.
+   *
+   * @param listener a listener to add.
+   */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Returns the websocket URLs of the active server nodes, including this server node.
+   *
+   * @return an immutable set of the websocket URLs of the active server nodes.
+   */
+  public Set<String> getWebSocketUrls() {
+    return nodes.keySet();
+  }
+
+  /**
+   * Returns the websocket URL of a lightly loaded server node.
+   *
+   * <p>Two active server nodes which published their load within the given age are picked at
+   * random, and the less loaded one is returned. Picking from two random candidates, rather than
+   * always picking the least loaded one, avoids sending every new client to the same server node
+   * until the next load report.</p>
+   *
+   * @param maxLoadAgeMillis the maximum age of the load reports to consider.
+   * @param defaultWebSocketUrl the websocket URL to return when no server node qualifies.
+   * @return the websocket URL of a lightly loaded server node.
+   */
+  public String getLightlyLoadedWebSocketUrl(long maxLoadAgeMillis, String defaultWebSocketUrl) {
+    long oldest = System.currentTimeMillis() - maxLoadAgeMillis;
+    Map<String, ServerNodeLoad> currentLoads = loads;
+    List<ServerNodeLoad> candidates = new ArrayList<>();
+    for (String webSocketUrl : nodes.keySet()) {
+      ServerNodeLoad load = currentLoads.get(webSocketUrl);
+      if (load != null && load.getLoadUpdatedAt() >= oldest) {
+        candidates.add(load);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return defaultWebSocketUrl;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    ServerNodeLoad first = candidates.get(random.nextInt(candidates.size()));
+    ServerNodeLoad second = candidates.get(random.nextInt(candidates.size()));
+    return first.getLoadScore() <= second.getLoadScore()
+        ? first.getWebSocketUrl() : second.getWebSocketUrl();
+  }
+
+  /**
+   * Reloads the active server nodes and their load from the datastore.
+   */
+  public void refresh() {
+    long start = System.nanoTime();
+    List<WebSocketServerNode> serverNodes = ofy().load()
+        .type(WebSocketServerNode.class).ancestor(WebSocketServerNode.getRootKey()).list();
+    List<Key<ServerNodeLoad>> loadKeys = new ArrayList<>();
+    ImmutableMap.Builder<String, WebSocketServerNode> builder = ImmutableMap.builder();
+    for (WebSocketServerNode serverNode : serverNodes) {
+      builder.put(serverNode.getWebSocketUrl(), serverNode);
+      loadKeys.add(ServerNodeLoad.getKeyFromWebSocketUrl(serverNode.getWebSocketUrl()));
+    }
+    Map<Key<ServerNodeLoad>, ServerNodeLoad> loadMap = ofy().load().keys(loadKeys);
+    ChatMetrics.DATASTORE_LOAD_SERVER_NODES.observeSince(start);
+    ImmutableMap.Builder<String, ServerNodeLoad> loadBuilder = ImmutableMap.builder();
+    for (ServerNodeLoad load : loadMap.values()) {
+      loadBuilder.put(load.getWebSocketUrl(), load);
+    }
+    loads = loadBuilder.build();
+    update(builder.build());
+  }
+
+  /**
+   * Adds a server node which announced that it joined.
+   *
+   * <p>The caller must have loaded the server node from the datastore, so that an announcement
+   * can't add a server node which never registered itself. The new server node is picked by
+   * {@link #getLightlyLoadedWebSocketUrl} only after the next {@link #refresh()} loaded the load
+   * it reported.</p>
+   *
+   * @param serverNode the WebSocketServerNode entity of the server node, loaded from the
+   *                   datastore.
+   */
+  public synchronized void add(WebSocketServerNode serverNode) {
+    if (! nodes.containsKey(serverNode.getWebSocketUrl())) {
+      update(ImmutableMap.<String, WebSocketServerNode>builder().putAll(nodes)
+          .put(serverNode.getWebSocketUrl(), serverNode).build());
+    }
+  }
+
+  /**
+   * Removes a server node which announced that it left.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   */
+  public synchronized void remove(String webSocketUrl) {
+    if (nodes.containsKey(webSocketUrl)) {
+      ImmutableMap.Builder<String, WebSocketServerNode> builder = ImmutableMap.builder();
+      for (Map.Entry<String, WebSocketServerNode> entry : nodes.entrySet()) {
+        if (! entry.getKey().equals(webSocketUrl)) {
+          builder.put(entry);
+        }
+      }
+      update(builder.build());
+    }
+  }
+
+  private synchronized void update(Map<String, WebSocketServerNode> newNodes) {
+    boolean changed = ! newNodes.keySet().equals(nodes.keySet());
+    nodes = newNodes;
+    if (changed) {
+      LOG.info("Active server nodes: " + newNodes.keySet());
+      for (Listener listener : listeners) {
+        listener.onNodesChanged(newNodes.keySet());
+      }
+    }
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.common.collect.MapMaker;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A class that bounds the outbound frames of every client connection, so that a slow client
+ * can't grow the heap without limit.
+ *
+ * <p>Java-WebSocket buffers every frame passed to {@link WebSocket#sendFrame(Framedata)} in an
+ * unbounded queue until the socket accepts it. This class passes at most
+ * {@link #MAX_IN_FLIGHT_FRAMES} frames to Java-WebSocket per connection, and holds the rest in a
+ * queue of {@link #QUEUE_CAPACITY} frames, which is moved to Java-WebSocket as the socket drains,
+ * by {@link #flush()}. When the queue is full, the {@link OverflowPolicy} decides what to drop.
+ * The frames queued to Java-WebSocket are never touched, because one of them may be half
+ * written.</p>
+ */
+public class OutboundQueueManager {
+
+  private static final Logger LOG = Logger.getLogger(OutboundQueueManager.class.getName());
+
+  private static final int MAX_IN_FLIGHT_FRAMES =
+      Integer.getInteger("websocketchat.connection.maxInFlightFrames", 64);
+
+  private static final int QUEUE_CAPACITY =
+      Integer.getInteger("websocketchat.connection.queueCapacity", 256);
+
+  /**
+   * What to do when the outbound queue of a connection is full.
+   */
+  public enum OverflowPolicy {
+    /** Drops the oldest queued frame. */
+    DROP_OLDEST,
+
+    /**
+     * Drops the oldest queued non-critical frame, such as ENTER, LEAVE and the participant list
+     * deltas, or the new frame if it is non-critical. Falls back to DROP_OLDEST when every
+     * queued frame is critical.
+     */
+    DROP_NON_CRITICAL,
+
+    /** Disconnects the slow client. */
+    DISCONNECT
+  }
+
+  /**
+   * A frame waiting in the outbound queue of a connection.
+   */
+  private static class QueuedFrame {
+
+    private final Framedata frame;
+
+    private final boolean critical;
+
+    QueuedFrame(Framedata frame, boolean critical) {
+      this.frame = frame;
+      this.critical = critical;
+    }
+  }
+
+  /**
+   * The outbound queue of a single connection.
+   *
+   * <p>The queue refers to the connection weakly, since it is the value of the connection in
+   * the weak-keyed queues, which would keep the connection forever otherwise.</p>
+   */
+  private class ConnectionQueue {
+
+    private final WeakReference<WebSocket> connectionReference;
+
+    private final ArrayDeque<QueuedFrame> frames;
+
+    private long droppedFrames;
+
+    private boolean closed;
+
+    ConnectionQueue(WebSocket connection) {
+      this.connectionReference = new WeakReference<>(connection);
+      this.frames = new ArrayDeque<>();
+    }
+
+    void send(Framedata frame, boolean critical) {
+      WebSocket connection = connectionReference.get();
+      synchronized (this) {
+        if (closed || connection == null) {
+          return;
+        }
+        if (frames.isEmpty() && getInFlightFrames(connection) < MAX_IN_FLIGHT_FRAMES) {
+          connection.sendFrame(frame);
+          return;
+        }
+        if (frames.size() < QUEUE_CAPACITY || policy != OverflowPolicy.DISCONNECT) {
+          if (frames.size() < QUEUE_CAPACITY || makeRoom(critical)) {
+            frames.addLast(new QueuedFrame(frame, critical));
+            addBacklogged(this);
+          }
+          flush();
+          return;
+        }
+        frames.clear();
+        backloggedQueues.remove(this);
+      }
+      // Closing outside the lock, since it invokes onClose, which sends LEAVE to the others.
+      LOG.warning(connection + " is too slow, disconnecting.");
+      disconnectedConnections.incrementAndGet();
+      connection.closeConnection(CloseFrame.POLICY_VALIDATION, "Too slow to receive.");
+    }
+
+    /**
+     * Applies DROP_OLDEST or DROP_NON_CRITICAL to the full queue.
+     *
+     * @param critical whether or not the new frame is critical.
+     * @return whether or not the new frame should be queued.
+     */
+    private boolean makeRoom(boolean critical) {
+      if (policy == OverflowPolicy.DROP_NON_CRITICAL) {
+        if (! critical) {
+          drop();
+          return false;
+        }
+        Iterator<QueuedFrame> iterator = frames.iterator();
+        while (iterator.hasNext()) {
+          if (! iterator.next().critical) {
+            iterator.remove();
+            drop();
+            return true;
+          }
+        }
+        // Every queued frame is critical, drop the oldest one as DROP_OLDEST does.
+      }
+      frames.pollFirst();
+      drop();
+      return true;
+    }
+
+    private void drop() {
+      droppedFrames++;
+      OutboundQueueManager.this.droppedFrames.incrementAndGet();
+    }
+
+    synchronized void flush() {
+      WebSocket connection = connectionReference.get();
+      if (closed || connection == null || ! connection.isOpen()) {
+        frames.clear();
+      }
+      while (! frames.isEmpty() && getInFlightFrames(connection) < MAX_IN_FLIGHT_FRAMES) {
+        connection.sendFrame(frames.pollFirst().frame);
+      }
+      if (frames.isEmpty()) {
+        backloggedQueues.remove(this);
+      }
+    }
+
+    synchronized void close() {
+      closed = true;
+      frames.clear();
+    }
+
+    synchronized int size() {
+      return frames.size();
+    }
+
+    synchronized long getDroppedFrames() {
+      return droppedFrames;
+    }
+  }
+
+  private final OverflowPolicy policy;
+
+  /*
+   * Compares the connections by identity, and forgets the closed ones with the connections, which
+   * only the keys refer to strongly.
+   */
+  private final ConcurrentMap<WebSocket, ConnectionQueue> queues;
+
+  /* Left in the queues by remove, so that a send racing with it doesn't create a new queue. */
+  private final ConnectionQueue closedQueue;
+
+  private final Set<ConnectionQueue> backloggedQueues;
+
+  /* Notified when a connection becomes backlogged, see awaitBacklog. */
+  private final Object backlogSignal;
+
+  private final AtomicLong droppedFrames;
+
+  private final AtomicLong disconnectedConnections;
+
+  /**
+   * Creates an OutboundQueueManager with the given overflow policy.
+   *
+   * @param policy what to do when the outbound queue of a connection is full.
+   */
+  public OutboundQueueManager(OverflowPolicy policy) {
+    this.policy = policy;
+    this.queues = new MapMaker().weakKeys().makeMap();
+    this.closedQueue = new ConnectionQueue(null);
+    this.closedQueue.close();
+    this.backloggedQueues =
+        Collections.newSetFromMap(new ConcurrentHashMap<ConnectionQueue, Boolean>());
+    this.backlogSignal = new Object();
+    this.droppedFrames = new AtomicLong();
+    this.disconnectedConnections = new AtomicLong();
+  }
+
+  /**
+   * Returns the number of the frames passed to Java-WebSocket and not written to the socket yet.
+   *
+   * @param connection a websocket connection object.
+   * @return the number of the frames passed to Java-WebSocket and not written to the socket yet.
+   */
+  private static int getInFlightFrames(WebSocket connection) {
+    if (connection instanceof WebSocketImpl) {
+      return ((WebSocketImpl) connection).outQueue.size();
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the outbound queue of the given connection, creating it if needed. A connection
+   * which has been removed gets the closed queue, which drops every frame.
+   *
+   * @param connection a websocket connection object.
+   * @return the outbound queue of the given connection.
+   */
+  private ConnectionQueue getQueue(WebSocket connection) {
+    ConnectionQueue queue = queues.get(connection);
+    if (queue == null) {
+      ConnectionQueue newQueue = new ConnectionQueue(connection);
+      queue = queues.putIfAbsent(connection, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * Sends the given frame to the given connection, or queues it when the connection is slow.
+   *
+   * @param connection a websocket connection object.
+   * @param frame a frame to send.
+   * @param critical whether or not the frame must be kept longer than the non-critical ones.
+   */
+  public void send(WebSocket connection, Framedata frame, boolean critical) {
+    if (connection.isOpen()) {
+      getQueue(connection).send(frame, critical);
+    }
+  }
+
+  private void addBacklogged(ConnectionQueue queue) {
+    if (backloggedQueues.add(queue)) {
+      synchronized (backlogSignal) {
+        backlogSignal.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Blocks until a connection has frames waiting in its queue, so that {@link #flush()} needs to
+   * be called only while some connection is slow.
+   *
+   * @throws InterruptedException when interrupted while waiting.
+   */
+  public void awaitBacklog() throws InterruptedException {
+    synchronized (backlogSignal) {
+      while (backloggedQueues.isEmpty()) {
+        backlogSignal.wait();
+      }
+    }
+  }
+
+  /**
+   * Moves the queued frames of the slow connections to Java-WebSocket as far as their sockets
+   * drained. This should be called periodically while {@link #awaitBacklog()} doesn't block.
+   */
+  public void flush() {
+    for (ConnectionQueue queue : backloggedQueues) {
+      queue.flush();
+    }
+  }
+
+  /**
+   * Discards the outbound queue of the given connection.
+   *
+   * <p>A closed queue is left for the connection instead, so that a send racing with this
+   * method neither creates a new queue, which would keep the closed connection forever, nor
+   * queues a frame to the old one. The entry goes away with the connection itself.</p>
+   *
+   * @param connection a websocket connection object which was closed.
+   */
+  public void remove(WebSocket connection) {
+    ConnectionQueue queue = queues.put(connection, closedQueue);
+    if (queue != null && queue != closedQueue) {
+      queue.close();
+      backloggedQueues.remove(queue);
+    }
+  }
+
+  /**
+   * Returns the number of the frames waiting for the given connection, both in its queue and in
+   * Java-WebSocket.
+   *
+   * @param connection a websocket connection object.
+   * @return the number of the frames waiting for the given connection.
+   */
+  public int getBacklog(WebSocket connection) {
+    ConnectionQueue queue = queues.get(connection);
+    return getInFlightFrames(connection) + (queue == null ? 0 : queue.size());
+  }
+
+  /**
+   * Returns the number of the frames dropped for the given connection.
+   *
+   * @param connection a websocket connection object.
+   * @return the number of the frames dropped for the given connection.
+   */
+  public long getDroppedFrames(WebSocket connection) {
+    ConnectionQueue queue = queues.get(connection);
+    return queue == null ? 0 : queue.getDroppedFrames();
+  }
+
+  /**
+   * Returns the total number of the frames waiting in the queues of the slow connections.
+   *
+   * @return the total number of the frames waiting in the queues of the slow connections.
+   */
+  public int getQueuedFrames() {
+    int size = 0;
+    for (ConnectionQueue queue : backloggedQueues) {
+      size += queue.size();
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    int connections = 0;
+    int maxBacklog = 0;
+    for (Map.Entry<WebSocket, ConnectionQueue> entry : queues.entrySet()) {
+      if (entry.getValue() != closedQueue) {
+        connections++;
+        maxBacklog = Math.max(maxBacklog, getBacklog(entry.getKey()));
+      }
+    }
+    return String.format("Outbound queues: policy=%s, connections=%d, slowConnections=%d, "
+        + "queuedFrames=%d, maxBacklog=%d, droppedFrames=%d, disconnectedConnections=%d", policy,
+        connections, backloggedQueues.size(), getQueuedFrames(), maxBacklog,
+        droppedFrames.get(), disconnectedConnections.get());
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.demos.websocketchat.domain.ChatRoomParticipants;
+import com.google.appengine.demos.websocketchat.metrics.ChatMetrics;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local cache of the global participant list of every chat room, so that we don't have to
+ * aggregate the participant lists in the datastore every time.
+ *
+ * <p>A chat room is loaded with {@link ChatRoomParticipants#getParticipants(String, Collection)}
+ * for the server nodes in the NodeRegistry on the first access, and then kept up to date by the
+ * ENTER and LEAVE messages of this server node and the ones propagated from other server nodes.
+ * In order to bound the staleness caused by a lost message, each chat room is reloaded from the
+ * datastore {@link #TTL_SECONDS} after it was loaded, regardless of the updates, and the
+ * listeners are notified so that the reloaded participant list gets distributed. At most
+ * {@link #MAX_ROOMS} chat rooms are cached, and the least recently used ones are evicted first.
+ * </p>
+ *
+ * <p>The ChatRoomParticipants entity of this server node is saved behind the updates by the
+ * ParticipantListWriter, so it may be stale when a chat room is loaded. Instead of that entity,
+ * the participants of this server node are taken from the MetaInfoManager.</p>
+ */
+public class ParticipantDirectory {
+
+  private static final long TTL_SECONDS =
+      Long.getLong("websocketchat.participantDirectory.ttlSeconds", 30L);
+
+  private static final long MAX_ROOMS =
+      Long.getLong("websocketchat.participantDirectory.maxRooms", 10000L);
+
+  /**
+   * A class that holds the global participant list of a single chat room.
+   */
+  private static class RoomParticipants {
+
+    private final Set<String> participants;
+
+    RoomParticipants(Set<String> participants) {
+      this.participants = new TreeSet<>(participants);
+    }
+
+    synchronized Set<String> get() {
+      return new TreeSet<>(participants);
+    }
+
+    synchronized void add(String name) {
+      participants.add(name);
+    }
+
+    synchronized void remove(String name) {
+      participants.remove(name);
+    }
+  }
+
+  /**
+   * A listener which is notified when the cached participant list of a chat room expired.
+   */
+  public interface Listener {
+
+    /**
+     * Called when the cached participant list of the given chat room expired. The listener
+     * should redistribute the participant list, since the participants which this server node
+     * missed are only visible after the chat room is reloaded.
+     *
+     * @param room a name of the chat room.
+     */
+    void onExpired(String room);
+  }
+
+  private final LoadingCache<String, RoomParticipants> cache;
+
+  private final List<Listener> listeners;
+
+  private volatile String localWebSocketUrl;
+
+  /**
+   * Creates an empty ParticipantDirectory.
+   *
+   * @param nodeRegistry a registry of the active server nodes.
+   * @param metaInfoManager the MetaInfoManager of this server node.
+   */
+  public ParticipantDirectory(final NodeRegistry nodeRegistry,
+                              final MetaInfoManager metaInfoManager) {
+    listeners = new CopyOnWriteArrayList<>();
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(MAX_ROOMS)
+        .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS)
+        .recordStats()
+        .removalListener(new RemovalListener<String, RoomParticipants>() {
+          @Override
+          public void onRemoval(RemovalNotification<String, RoomParticipants> notification) {
+            if (notification.getCause() == RemovalCause.EXPIRED) {
+              for (Listener listener : listeners) {
+                listener.onExpired(notification.getKey());
+              }
+            }
+          }
+        })
+        .build(new CacheLoader<String, RoomParticipants>() {
+          @Override
+          public RoomParticipants load(String room) {
+            Set<String> serverNodes = new HashSet<>(nodeRegistry.getWebSocketUrls());
+            serverNodes.remove(localWebSocketUrl);
+            Set<String> participants;
+            long start = System.nanoTime();
+            try {
+              participants = ChatRoomParticipants.getParticipants(room, serverNodes);
+            } finally {
+              ChatMetrics.DATASTORE_LOAD_PARTICIPANTS.observeSince(start);
+            }
+            participants.addAll(metaInfoManager.getParticipantList(room));
+            return new RoomParticipants(participants);
+          }
+        });
+  }
+
+  /**
+   * Sets the websocket URL of this server node, whose ChatRoomParticipants entities are not
+   * loaded from the datastore.
+   *
+   * @param webSocketUrl the websocket URL of this server node.
+   */
+  public void setLocalWebSocketUrl(String webSocketUrl) {
+    this.localWebSocketUrl = webSocketUrl;
+  }
+
+  /**
+   * Adds a listener which is notified when the cached participant list of a chat room expired.
+   *
+   * @param listener a listener to add.
+   */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Returns the global list of participants of the given chat room, loading it from the
+   * datastore only when it is not cached.
+   *
+   * @param room a name of the chat room.
+   * @return a copy of the global list of participants of the given chat room.
+   */
+  public Set<String> getParticipants(String room) {
+    return cache.getUnchecked(room).get();
+  }
+
+  /**
+   * Adds a participant to the given chat room if the chat room is cached.
+   *
+   * @param room a name of the chat room.
+   * @param name a name of the participant who entered the chat room.
+   */
+  public void addParticipant(String room, String name) {
+    RoomParticipants roomParticipants = cache.getIfPresent(room);
+    if (roomParticipants != null) {
+      roomParticipants.add(name);
+    }
+  }
+
+  /**
+   * Removes a participant from the given chat room if the chat room is cached.
+   *
+   * @param room a name of the chat room.
+   * @param name a name of the participant who left the chat room.
+   */
+  public void removeParticipant(String room, String name) {
+    RoomParticipants roomParticipants = cache.getIfPresent(room);
+    if (roomParticipants != null) {
+      roomParticipants.remove(name);
+    }
+  }
+
+  /**
+   * Discards the cached participant list of the given chat room. This server node should call it
+   * when it stops hosting the chat room, because the ENTER and LEAVE messages of the chat room are
+   * no longer propagated to this server node.
+   *
+   * @param room a name of the chat room.
+   */
+  public void invalidate(String room) {
+    cache.invalidate(room);
+  }
+
+  /**
+   * Discards the expired participant lists and notifies the listeners. The expired entries are
+   * otherwise discarded only when the cache is accessed, so this should be called periodically.
+   */
+  public void cleanUp() {
+    cache.cleanUp();
+  }
+
+  /**
+   * Returns the hit and miss statistics of this cache.
+   *
+   * @return the hit and miss statistics of this cache.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+}
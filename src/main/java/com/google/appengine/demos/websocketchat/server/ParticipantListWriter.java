@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.demos.websocketchat.domain.ChatRoomParticipants;
+import com.google.appengine.demos.websocketchat.metrics.ChatMetrics;
+import com.google.common.base.Throwables;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * A class that writes the participant lists of this server node to the datastore behind the
+ * participant list updates.
+ *
+ * <p>The chat rooms marked as dirty within a short window are saved together with a single
+ * asynchronous batch put of their ChatRoomParticipants entities, and the entities of the chat
+ * rooms which became empty are removed with a single asynchronous batch delete, so that the
+ * existence of an entity alone tells that this server node hosts the chat room. The batch is
+ * completed while the next one is being gathered, so at most one batch is in flight. A chat room
+ * whose participants haven't changed since the last successful save is skipped, and the chat
+ * rooms of a failed batch are marked as dirty again and retried with an exponential backoff.</p>
+ *
+ * <p>Only a single thread calls {@link #process(String)} and {@link #flush(String)}, the other
+ * methods are thread safe.</p>
+ */
+public class ParticipantListWriter {
+
+  private static final Logger LOG = Logger.getLogger(ParticipantListWriter.class.getName());
+
+  /* The maximum number of entities in a single datastore batch put. */
+  private static final int MAX_BATCH_SIZE = 500;
+
+  /**
+   * A batch put and a batch delete which have been issued but not completed yet. Either result
+   * is null if the batch has nothing to put or to delete.
+   */
+  private static class PendingWrite {
+
+    private final Result<?> saveResult;
+
+    private final Result<?> deleteResult;
+
+    private final Map<String, Long> versions;
+
+    private final List<Key<ChatRoomParticipants>> keys;
+
+    private final List<Key<ChatRoomParticipants>> deletedKeys;
+
+    private final long startNanos;
+
+    PendingWrite(Result<?> saveResult, Result<?> deleteResult, Map<String, Long> versions,
+                 List<Key<ChatRoomParticipants>> keys,
+                 List<Key<ChatRoomParticipants>> deletedKeys, long startNanos) {
+      this.saveResult = saveResult;
+      this.deleteResult = deleteResult;
+      this.versions = versions;
+      this.keys = keys;
+      this.deletedKeys = deletedKeys;
+      this.startNanos = startNanos;
+    }
+
+    int size() {
+      return keys.size() + deletedKeys.size();
+    }
+  }
+
+  private final MetaInfoManager metaInfoManager;
+
+  private final long windowMillis;
+
+  private final long maxRetryDelayMillis;
+
+  private final Set<String> dirtyRooms;
+
+  private final BlockingQueue<String> queue;
+
+  /* The version of the participants of each chat room saved last time. */
+  private final Map<String, Long> savedVersions;
+
+  private final Set<Key<ChatRoomParticipants>> savedKeys;
+
+  private final AtomicLong savedEntities;
+
+  private final AtomicLong failedEntities;
+
+  private PendingWrite pendingWrite;
+
+  private int consecutiveFailures;
+
+  /**
+   * Creates a ParticipantListWriter for the participants in the given MetaInfoManager.
+   *
+   * @param metaInfoManager the MetaInfoManager of this server node.
+   * @param windowMillis the time in milliseconds to gather the dirty chat rooms into a batch.
+   * @param maxRetryDelayMillis the maximum time in milliseconds to wait before retrying a failed
+   *                            batch.
+   */
+  public ParticipantListWriter(MetaInfoManager metaInfoManager, long windowMillis,
+                               long maxRetryDelayMillis) {
+    this.metaInfoManager = metaInfoManager;
+    this.windowMillis = windowMillis;
+    this.maxRetryDelayMillis = maxRetryDelayMillis;
+    this.dirtyRooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.queue = new LinkedBlockingQueue<>();
+    this.savedVersions = new ConcurrentHashMap<>();
+    this.savedKeys = Collections.newSetFromMap(
+        new ConcurrentHashMap<Key<ChatRoomParticipants>, Boolean>());
+    this.savedEntities = new AtomicLong();
+    this.failedEntities = new AtomicLong();
+  }
+
+  /**
+   * Marks the participant list of the given chat room to be saved with the next batch. Marking
+   * a chat room which is already waiting is a no-op.
+   *
+   * @param room a name of the chat room.
+   */
+  public void markDirty(String room) {
+    if (dirtyRooms.add(room)) {
+      queue.add(room);
+    }
+  }
+
+  /**
+   * Blocks until a chat room is marked as dirty, or for the window while a batch is in flight,
+   * then gathers the dirty chat rooms for the window, completes the batch in flight and issues
+   * the new one. After a failed batch, the next one waits for the backoff.
+   *
+   * @param serverNode an identifier of this server node, in the form of websocket URL.
+   * @throws InterruptedException
+   */
+  public void process(String serverNode) throws InterruptedException {
+    List<String> rooms = new ArrayList<>();
+    try {
+      gather(rooms);
+    } catch (InterruptedException e) {
+      // They are still marked as dirty, leave them to flush.
+      queue.addAll(rooms);
+      throw e;
+    }
+    boolean completed = complete();
+    write(serverNode, rooms);
+    if (completed) {
+      consecutiveFailures = 0;
+    } else {
+      consecutiveFailures++;
+      TimeUnit.MILLISECONDS.sleep(
+          Math.min(maxRetryDelayMillis, windowMillis << Math.min(consecutiveFailures, 20)));
+    }
+  }
+
+  private void gather(List<String> rooms) throws InterruptedException {
+    String room = pendingWrite == null
+        ? queue.take() : queue.poll(windowMillis, TimeUnit.MILLISECONDS);
+    if (room == null) {
+      return;
+    }
+    rooms.add(room);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    while (rooms.size() < MAX_BATCH_SIZE) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      room = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (room == null) {
+        break;
+      }
+      rooms.add(room);
+      queue.drainTo(rooms, MAX_BATCH_SIZE - rooms.size());
+    }
+  }
+
+  /**
+   * Completes the batch in flight, then saves the dirty chat rooms once and waits for them, so
+   * that nothing is written after this method returns. Used when this server node stops, so the
+   * failures are not retried.
+   *
+   * @param serverNode an identifier of this server node, in the form of websocket URL.
+   */
+  public void flush(String serverNode) {
+    complete();
+    List<String> rooms = new ArrayList<>();
+    queue.drainTo(rooms);
+    for (int i = 0; i < rooms.size(); i += MAX_BATCH_SIZE) {
+      write(serverNode, rooms.subList(i, Math.min(i + MAX_BATCH_SIZE, rooms.size())));
+      complete();
+    }
+  }
+
+  private void write(String serverNode, List<String> rooms) {
+    Map<String, Long> versions = new HashMap<>();
+    List<ChatRoomParticipants> entities = new ArrayList<>();
+    List<Key<ChatRoomParticipants>> keys = new ArrayList<>();
+    List<Key<ChatRoomParticipants>> deletedKeys = new ArrayList<>();
+    for (String room : rooms) {
+      // Unmark it before taking the snapshot, so that a later change marks it again.
+      dirtyRooms.remove(room);
+      MetaInfoManager.ParticipantSnapshot snapshot = metaInfoManager.getParticipantSnapshot(room);
+      Long savedVersion = savedVersions.get(room);
+      if (savedVersion != null && savedVersion == snapshot.getVersion()) {
+        continue;
+      }
+      ChatRoomParticipants chatRoomParticipants =
+          new ChatRoomParticipants(room, serverNode, snapshot.getParticipants());
+      versions.put(room, snapshot.getVersion());
+      if (snapshot.getParticipants().isEmpty()) {
+        deletedKeys.add(chatRoomParticipants.getKey());
+      } else {
+        entities.add(chatRoomParticipants);
+        keys.add(chatRoomParticipants.getKey());
+      }
+    }
+    if (versions.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    Result<?> saveResult = entities.isEmpty() ? null : ofy().save().entities(entities);
+    Result<?> deleteResult = deletedKeys.isEmpty() ? null : ofy().delete().keys(deletedKeys);
+    pendingWrite = new PendingWrite(saveResult, deleteResult, versions, keys, deletedKeys, start);
+  }
+
+  /**
+   * Waits for the batch in flight, if any. On failure, its chat rooms are marked as dirty again.
+   *
+   * @return false if the batch failed, true otherwise.
+   */
+  private boolean complete() {
+    if (pendingWrite == null) {
+      return true;
+    }
+    PendingWrite write = pendingWrite;
+    pendingWrite = null;
+    try {
+      if (write.saveResult != null) {
+        write.saveResult.now();
+      }
+      if (write.deleteResult != null) {
+        write.deleteResult.now();
+      }
+      ChatMetrics.DATASTORE_SAVE_PARTICIPANTS.observeSince(write.startNanos);
+      savedVersions.putAll(write.versions);
+      savedKeys.addAll(write.keys);
+      savedKeys.removeAll(write.deletedKeys);
+      savedEntities.addAndGet(write.size());
+      return true;
+    } catch (RuntimeException e) {
+      for (String room : write.versions.keySet()) {
+        markDirty(room);
+      }
+      if (Throwables.getRootCause(e) instanceof InterruptedException) {
+        // Stopping, the datastore call consumed the interrupt; flush saves the chat rooms again.
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      failedEntities.addAndGet(write.size());
+      LOG.warning("Failed to save " + write.size() + " participant lists: "
+          + Throwables.getStackTraceAsString(e));
+      return false;
+    }
+  }
+
+  /**
+   * Returns the keys of the ChatRoomParticipants entities this writer has saved.
+   *
+   * @return an unmodifiable live view of the keys of the saved entities.
+   */
+  public Set<Key<ChatRoomParticipants>> getSavedKeys() {
+    return Collections.unmodifiableSet(savedKeys);
+  }
+
+  /**
+   * Returns the number of the chat rooms waiting for the next batch.
+   *
+   * @return the number of the dirty chat rooms.
+   */
+  public int getDirtyRoomCount() {
+    return dirtyRooms.size();
+  }
+
+  /**
+   * Returns the number of the entities saved or deleted so far.
+   *
+   * @return the number of the saved or deleted entities.
+   */
+  public long getSavedEntities() {
+    return savedEntities.get();
+  }
+
+  /**
+   * Returns the number of the entities in the failed batches so far, including the retries.
+   *
+   * @return the number of the entities which failed to be saved.
+   */
+  public long getFailedEntities() {
+    return failedEntities.get();
+  }
+}
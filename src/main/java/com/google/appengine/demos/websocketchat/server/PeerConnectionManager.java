@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.appengine.demos.websocketchat.message.BinaryPropagateCodec;
+import com.google.appengine.demos.websocketchat.message.ChatMessage;
+import com.google.appengine.demos.websocketchat.message.OutgoingMessage;
+import com.google.appengine.demos.websocketchat.message.PropagateBatchMessage;
+import com.google.appengine.demos.websocketchat.metrics.ChatMetrics;
+import com.google.common.base.Throwables;
+import com.google.gson.Gson;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A class that keeps a single long-lived websocket connection to every other server node, and
+ * sends the propagate messages over them.
+ *
+ * <p>Every server node has its own bounded send queue and its own sender thread, so sending
+ * never blocks the caller, and a slow or dead server node doesn't delay the delivery to the
+ * others. The sender thread opens the connection on the first message, and re-opens it when the
+ * connection is lost, but not more often than once every {@link #RECONNECT_INTERVAL_MILLIS}.
+ * </p>
+ *
+ * <p>A message that has waited longer than {@link #SEND_TIMEOUT_MILLIS} in the send queue is
+ * dropped. When the send queue is full, the oldest message is dropped. When a server node
+ * doesn't drain its socket buffer within the timeout, the connection is considered unhealthy and
+ * re-opened.</p>
+ *
+ * <p>Every connection offers {@link BinaryPropagateCodec#SUBPROTOCOL} in the handshake. When the
+ * server node accepts it, the propagate batches are sent in the compact binary encoding,
+ * otherwise they are sent as a PropagateBatchMessage in JSON, which older server nodes
+ * understand. The batches are encoded by the sender thread right before they are sent, because
+ * the binary encoding depends on the connection.</p>
+ *
+ * <p>When the server node also accepts {@link BinaryPropagateCodec#DEFLATE_SUBPROTOCOL}, the
+ * binary frames larger than {@link FrameCompressor#DEFAULT_THRESHOLD_BYTES} are compressed, since
+ * the traffic between the server nodes may cross the zones.</p>
+ *
+ * <p>Every connection also carries the websocket URL of this server node in {@link #NODE_HEADER},
+ * which browsers can't set, so that the other server nodes accept the propagate batches and the
+ * announcements only from the connections of the active server nodes.</p>
+ */
+public class PeerConnectionManager {
+
+  /**
+   * The handshake header in which a server node sends its own websocket URL to the others.
+   */
+  public static final String NODE_HEADER = "X-WebSocketChat-Node";
+
+  private static final Logger LOG = Logger.getLogger(PeerConnectionManager.class.getName());
+
+  private static final Gson GSON = new Gson();
+
+  private static final long RECONNECT_INTERVAL_MILLIS = 1000L;
+
+  private static final int QUEUE_CAPACITY =
+      Integer.getInteger("websocketchat.peer.queueCapacity", 1000);
+
+  private static final long CONNECT_TIMEOUT_MILLIS =
+      Long.getLong("websocketchat.peer.connectTimeoutMillis", 3000L);
+
+  private static final long SEND_TIMEOUT_MILLIS =
+      Long.getLong("websocketchat.peer.sendTimeoutMillis", 5000L);
+
+  private static final int MAX_SOCKET_BACKLOG =
+      Integer.getInteger("websocketchat.peer.maxSocketBacklog", 1000);
+
+  private static final boolean BINARY_PROTOCOL_ENABLED = Boolean.parseBoolean(
+      System.getProperty("websocketchat.binaryProtocol.enabled", "true"));
+
+  private static final boolean PEER_COMPRESSION_ENABLED = Boolean.parseBoolean(
+      System.getProperty("websocketchat.compression.peerEnabled", "true"));
+
+  /**
+   * A message waiting in the send queue of a server node.
+   */
+  private static class PendingMessage {
+
+    private final String message;
+
+    private final List<? extends OutgoingMessage> batch;
+
+    private final long enqueuedNanos;
+
+    PendingMessage(String message, List<? extends OutgoingMessage> batch, long enqueuedNanos) {
+      this.message = message;
+      this.batch = batch;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+
+    boolean isExpired() {
+      return System.nanoTime() - enqueuedNanos
+          > TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT_MILLIS);
+    }
+  }
+
+  /**
+   * A class that represents a connection to a single server node, with its own send queue and
+   * sender thread.
+   */
+  class PeerConnection implements Runnable {
+
+    private final String webSocketUrl;
+
+    private final BlockingQueue<PendingMessage> sendQueue;
+
+    private volatile WebSocketClient client;
+
+    private volatile CountDownLatch openLatch;
+
+    /* Non-null only when the current client negotiated the binary encoding. */
+    private volatile BinaryPropagateCodec.Encoder encoder;
+
+    private volatile boolean deflate;
+
+    private volatile boolean closed;
+
+    private Thread senderThread;
+
+    private long lastConnectAttempt;
+
+    /**
+     * Creates a PeerConnection instance for the given server node.
+     *
+     * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+     *                     e.x. "ws://173.255.112.201:65080/".
+     */
+    PeerConnection(String webSocketUrl) {
+      this.webSocketUrl = webSocketUrl;
+      this.sendQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    }
+
+    /**
+     * Starts the sender thread of this connection.
+     */
+    void start() {
+      senderThread = threadFactory.newThread(this);
+      senderThread.start();
+    }
+
+    /**
+     * Queues the given message for the server node. This method never blocks.
+     *
+     * @param pendingMessage a message to send.
+     */
+    void send(PendingMessage pendingMessage) {
+      while (! sendQueue.offer(pendingMessage)) {
+        if (sendQueue.poll() != null) {
+          LOG.warning("Too many pending messages for " + webSocketUrl
+              + ", dropped the oldest one.");
+        }
+      }
+    }
+
+    /**
+     * Returns the number of the messages waiting in the send queue.
+     *
+     * @return the number of the messages waiting in the send queue.
+     */
+    int getQueueSize() {
+      return sendQueue.size();
+    }
+
+    @Override
+    public void run() {
+      while (! closed && ! Thread.currentThread().isInterrupted()) {
+        try {
+          PendingMessage pendingMessage = sendQueue.take();
+          if (pendingMessage.isExpired()) {
+            LOG.warning("A message for " + webSocketUrl + " timed out, dropped it.");
+            continue;
+          }
+          sendWithinTimeout(pendingMessage);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          LOG.warning(Throwables.getStackTraceAsString(e));
+        }
+      }
+      LOG.info("Sender thread for " + webSocketUrl + " is stopping.");
+    }
+
+    private void sendWithinTimeout(PendingMessage pendingMessage) throws InterruptedException {
+      while (! pendingMessage.isExpired()) {
+        if (awaitWritable()) {
+          try {
+            sendNow(pendingMessage);
+            if (pendingMessage.batch != null) {
+              ChatMetrics.PEER_DELIVERY_LATENCY.observeSince(pendingMessage.enqueuedNanos);
+            }
+            return;
+          } catch (WebsocketNotConnectedException e) {
+            LOG.info("Connection to " + webSocketUrl + " is lost, retrying.");
+          }
+        }
+      }
+      LOG.warning("A message for " + webSocketUrl + " timed out, dropped it.");
+    }
+
+    private void sendNow(PendingMessage pendingMessage) {
+      if (pendingMessage.batch == null) {
+        client.send(pendingMessage.message);
+        return;
+      }
+      BinaryPropagateCodec.Encoder currentEncoder = encoder;
+      if (currentEncoder != null) {
+        byte[] frame = currentEncoder.encode(pendingMessage.batch);
+        byte[] compressed = deflate ? compressor.compress(frame) : null;
+        if (compressed != null) {
+          byte[] deflatedFrame = new byte[compressed.length + 1];
+          deflatedFrame[0] = BinaryPropagateCodec.DEFLATED_FRAME;
+          System.arraycopy(compressed, 0, deflatedFrame, 1, compressed.length);
+          frame = deflatedFrame;
+        }
+        client.send(frame);
+      } else {
+        PropagateBatchMessage batch = new PropagateBatchMessage();
+        for (OutgoingMessage message : pendingMessage.batch) {
+          batch.add(ChatMessage.createPropagateMessage(message, GSON));
+        }
+        client.send(GSON.toJson(batch));
+      }
+    }
+
+    /**
+     * Waits until the connection is open and the socket buffer of the connection has room for
+     * more messages, re-opening the connection when needed.
+     *
+     * @return whether or not the connection is writable.
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    private boolean awaitWritable() throws InterruptedException {
+      if (! isOpen()) {
+        return connect();
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT_MILLIS);
+      while (getSocketBacklog() > MAX_SOCKET_BACKLOG) {
+        if (System.nanoTime() > deadline) {
+          LOG.warning(webSocketUrl + " doesn't drain the socket buffer, reconnecting.");
+          closeClient();
+          return false;
+        }
+        Thread.sleep(10);
+      }
+      return isOpen();
+    }
+
+    private boolean isOpen() {
+      WebSocketClient currentClient = client;
+      return currentClient != null
+          && currentClient.getReadyState() == WebSocket.READYSTATE.OPEN;
+    }
+
+    private int getSocketBacklog() {
+      WebSocketClient currentClient = client;
+      if (currentClient != null && currentClient.getConnection() instanceof WebSocketImpl) {
+        return ((WebSocketImpl) currentClient.getConnection()).outQueue.size();
+      }
+      return 0;
+    }
+
+    /**
+     * Opens a new connection and waits for {@link #CONNECT_TIMEOUT_MILLIS} at most.
+     *
+     * @return whether or not the connection is open.
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    private boolean connect() throws InterruptedException {
+      closeClient();
+      long wait = lastConnectAttempt + RECONNECT_INTERVAL_MILLIS - System.currentTimeMillis();
+      if (wait > 0) {
+        Thread.sleep(wait);
+      }
+      lastConnectAttempt = System.currentTimeMillis();
+      try {
+        openLatch = new CountDownLatch(1);
+        encoder = null;
+        deflate = false;
+        client = createClient();
+        LOG.info("Connecting to the server: " + webSocketUrl);
+        client.connect();
+      } catch (URISyntaxException e) {
+        LOG.warning(Throwables.getStackTraceAsString(e));
+        return false;
+      }
+      if (! openLatch.await(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        LOG.warning("Connecting to " + webSocketUrl + " timed out.");
+        closeClient();
+        return false;
+      }
+      return isOpen();
+    }
+
+    private void closeClient() {
+      WebSocketClient currentClient = client;
+      if (currentClient != null) {
+        currentClient.close();
+        client = null;
+      }
+    }
+
+    /**
+     * Closes the connection, stops the sender thread and discards the pending messages.
+     */
+    void close() {
+      closed = true;
+      if (senderThread != null) {
+        senderThread.interrupt();
+      }
+      closeClient();
+      sendQueue.clear();
+    }
+
+    private WebSocketClient createClient() throws URISyntaxException {
+      final CountDownLatch latch = openLatch;
+      Map<String, String> headers = new HashMap<>();
+      if (localWebSocketUrl != null) {
+        headers.put(NODE_HEADER, localWebSocketUrl);
+      }
+      if (BINARY_PROTOCOL_ENABLED && PEER_COMPRESSION_ENABLED) {
+        headers.put(BinaryPropagateCodec.SUBPROTOCOL_HEADER,
+            BinaryPropagateCodec.DEFLATE_SUBPROTOCOL + ", " + BinaryPropagateCodec.SUBPROTOCOL);
+      } else if (BINARY_PROTOCOL_ENABLED) {
+        headers.put(BinaryPropagateCodec.SUBPROTOCOL_HEADER, BinaryPropagateCodec.SUBPROTOCOL);
+      }
+      return new WebSocketClient(new URI(webSocketUrl), new Draft_10(), headers, 0) {
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+          String subprotocol =
+              handshakedata.getFieldValue(BinaryPropagateCodec.SUBPROTOCOL_HEADER);
+          deflate = BinaryPropagateCodec.DEFLATE_SUBPROTOCOL.equals(subprotocol);
+          boolean binary = deflate || BinaryPropagateCodec.SUBPROTOCOL.equals(subprotocol);
+          encoder = binary ? new BinaryPropagateCodec.Encoder(GSON) : null;
+          LOG.info("Connected to the server: " + webSocketUrl
+              + (binary ? " with the binary encoding" : " with the JSON encoding")
+              + (deflate ? " and the compression." : "."));
+          latch.countDown();
+        }
+
+        @Override
+        public void onMessage(String message) {
+          LOG.info("Message received: " + message);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+          LOG.info("Connection to " + webSocketUrl + " closed.");
+          latch.countDown();
+        }
+
+        @Override
+        public void onError(Exception ex) {
+          LOG.warning(Throwables.getStackTraceAsString(ex));
+        }
+      };
+    }
+  }
+
+  private final ConcurrentMap<String, PeerConnection> peerConnections;
+
+  private final ThreadFactory threadFactory;
+
+  private final FrameCompressor compressor;
+
+  private volatile String localWebSocketUrl;
+
+  /**
+   * Creates a PeerConnectionManager without any connections.
+   *
+   * @param threadFactory a factory for the sender threads of the connections.
+   */
+  public PeerConnectionManager(ThreadFactory threadFactory) {
+    this.peerConnections = new ConcurrentHashMap<>();
+    this.threadFactory = threadFactory;
+    this.compressor = new FrameCompressor("peer", FrameCompressor.DEFAULT_THRESHOLD_BYTES);
+  }
+
+  /**
+   * Sets the websocket URL of this server node, which is sent to the other server nodes in
+   * {@link #NODE_HEADER} when the connections are opened.
+   *
+   * @param webSocketUrl the websocket URL of this server node.
+   */
+  public void setLocalWebSocketUrl(String webSocketUrl) {
+    this.localWebSocketUrl = webSocketUrl;
+  }
+
+  private PeerConnection getPeerConnection(String webSocketUrl) {
+    PeerConnection peerConnection = peerConnections.get(webSocketUrl);
+    if (peerConnection == null) {
+      PeerConnection newPeerConnection = new PeerConnection(webSocketUrl);
+      peerConnection = peerConnections.putIfAbsent(webSocketUrl, newPeerConnection);
+      if (peerConnection == null) {
+        peerConnection = newPeerConnection;
+        peerConnection.start();
+      }
+    }
+    return peerConnection;
+  }
+
+  /**
+   * Queues the given message for the given server node. The message is sent asynchronously over
+   * the persistent connection.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @param message a serialized message to send.
+   */
+  public void send(String webSocketUrl, String message) {
+    getPeerConnection(webSocketUrl).send(new PendingMessage(message, null, System.nanoTime()));
+  }
+
+  /**
+   * Queues the given messages for the given server node as a single propagate batch. The batch
+   * is encoded and sent asynchronously over the persistent connection, in the encoding that the
+   * connection negotiated.
+   *
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   * @param messages the original messages to propagate, in order.
+   * @param enqueuedNanos a value of {@link System#nanoTime()} when the oldest message was queued
+   *                      for propagation, from which the send timeout and the delivery latency
+   *                      are measured.
+   */
+  public void sendBatch(String webSocketUrl, List<? extends OutgoingMessage> messages,
+                        long enqueuedNanos) {
+    getPeerConnection(webSocketUrl).send(new PendingMessage(null, messages, enqueuedNanos));
+  }
+
+  /**
+   * Returns the compressor of the binary frames sent to the server nodes, which keeps track of
+   * the compression ratio achieved.
+   *
+   * @return the compressor of the binary frames sent to the server nodes.
+   */
+  public FrameCompressor getCompressor() {
+    return compressor;
+  }
+
+  /**
+   * Returns the total number of the messages waiting in the send queues.
+   *
+   * @return the total number of the messages waiting in the send queues.
+   */
+  public int getQueueSize() {
+    int size = 0;
+    for (PeerConnection peerConnection : peerConnections.values()) {
+      size += peerConnection.getQueueSize();
+    }
+    return size;
+  }
+
+  /**
+   * Waits until all the send queues become empty, for the given time at most.
+   *
+   * @param timeoutMillis the maximum time to wait in milliseconds.
+   * @throws InterruptedException when interrupted while waiting.
+   */
+  public void awaitEmpty(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (getQueueSize() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Closes the connections to the server nodes which are not in the given collection anymore.
+   *
+   * @param activeWebSocketUrls the websocket URLs of the currently active server nodes.
+   */
+  public void retainPeers(Collection<String> activeWebSocketUrls) {
+    Iterator<Map.Entry<String, PeerConnection>> iterator = peerConnections.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, PeerConnection> entry = iterator.next();
+      if (! activeWebSocketUrls.contains(entry.getKey())) {
+        LOG.info("Closing the connection to the inactive server: " + entry.getKey());
+        entry.getValue().close();
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Closes all the connections.
+   */
+  public void closeAll() {
+    for (PeerConnection peerConnection : peerConnections.values()) {
+      peerConnection.close();
+    }
+    peerConnections.clear();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class that keeps the last messages of every chat room hosted by this server node, so that
+ * they can be replayed to a new participant.
+ *
+ * <p>The messages are kept as the SharedTextFrames which were sent to the participants, so a
+ * replay doesn't serialize anything. Each chat room has a ring buffer of at most
+ * {@link #MAX_MESSAGES} messages and {@link #MAX_ROOM_BYTES} bytes, and the oldest messages are
+ * dropped first. The messages of every chat room take {@link #MAX_TOTAL_BYTES} bytes at most
+ * together. Once they do, a chat room only records a new message in place of its own older
+ * ones.</p>
+ *
+ * <p>The buffer of a chat room is kept until {@link #clear(String)}, which the server node calls
+ * when it stops hosting the chat room. It is never evicted while the chat room has connections,
+ * because a sender and a new participant must lock the same buffer, see {@link RoomBuffer}.</p>
+ */
+public class RoomHistory {
+
+  private static final int MAX_MESSAGES =
+      Integer.getInteger("websocketchat.history.maxMessages", 50);
+
+  private static final long MAX_ROOM_BYTES =
+      Long.getLong("websocketchat.history.maxRoomBytes", 64L * 1024);
+
+  private static final long MAX_TOTAL_BYTES =
+      Long.getLong("websocketchat.history.maxTotalBytes", 64L * 1024 * 1024);
+
+  /**
+   * A fixed-capacity ring buffer of the last messages of a single chat room.
+   *
+   * <p>The callers synchronize on the buffer when they need to record or replay the messages
+   * atomically with the delivery, so that a new participant gets every message exactly once and
+   * in order.</p>
+   */
+  public static class RoomBuffer {
+
+    private final SharedTextFrame[] frames;
+
+    private final long maxBytes;
+
+    /* The bytes of the messages of every chat room, shared by the buffers of a RoomHistory. */
+    private final AtomicLong totalBytes;
+
+    private final long maxTotalBytes;
+
+    private int head;
+
+    private int size;
+
+    private long bytes;
+
+    /* Set by RoomHistory.clear, after which nothing is recorded anymore. */
+    private boolean released;
+
+    RoomBuffer(int capacity, long maxBytes, AtomicLong totalBytes, long maxTotalBytes) {
+      this.frames = new SharedTextFrame[capacity];
+      this.maxBytes = maxBytes;
+      this.totalBytes = totalBytes;
+      this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Adds a message, dropping the oldest ones as needed. The message is not recorded when the
+     * other chat rooms have used up the total bytes.
+     *
+     * @param frame an encoded message.
+     */
+    public synchronized void add(SharedTextFrame frame) {
+      int frameBytes = frame.getPayloadSize();
+      if (released || frames.length == 0 || frameBytes > maxBytes) {
+        return;
+      }
+      while (size == frames.length || bytes + frameBytes > maxBytes) {
+        removeOldest();
+      }
+      while (size > 0 && totalBytes.get() + frameBytes > maxTotalBytes) {
+        removeOldest();
+      }
+      if (totalBytes.addAndGet(frameBytes) > maxTotalBytes) {
+        totalBytes.addAndGet(-frameBytes);
+        return;
+      }
+      frames[(head + size) % frames.length] = frame;
+      size++;
+      bytes += frameBytes;
+    }
+
+    private void removeOldest() {
+      bytes -= frames[head].getPayloadSize();
+      totalBytes.addAndGet(-frames[head].getPayloadSize());
+      frames[head] = null;
+      head = (head + 1) % frames.length;
+      size--;
+    }
+
+    /**
+     * Returns the messages in this buffer, from the oldest to the newest.
+     *
+     * @return a copy of the messages in this buffer.
+     */
+    public synchronized List<SharedTextFrame> getFrames() {
+      List<SharedTextFrame> result = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        result.add(frames[(head + i) % frames.length]);
+      }
+      return result;
+    }
+
+    /**
+     * Removes all the messages in this buffer.
+     */
+    public synchronized void clear() {
+      while (size > 0) {
+        removeOldest();
+      }
+      head = 0;
+    }
+
+    private synchronized void release() {
+      released = true;
+      clear();
+    }
+  }
+
+  private final int maxMessages;
+
+  private final long maxRoomBytes;
+
+  private final long maxTotalBytes;
+
+  private final ConcurrentMap<String, RoomBuffer> buffers;
+
+  private final AtomicLong totalBytes;
+
+  /**
+   * Creates an empty RoomHistory.
+   */
+  public RoomHistory() {
+    this(MAX_MESSAGES, MAX_ROOM_BYTES, MAX_TOTAL_BYTES);
+  }
+
+  @VisibleForTesting
+  RoomHistory(int maxMessages, long maxRoomBytes, long maxTotalBytes) {
+    this.maxMessages = maxMessages;
+    this.maxRoomBytes = maxRoomBytes;
+    this.maxTotalBytes = maxTotalBytes;
+    this.buffers = new ConcurrentHashMap<>();
+    this.totalBytes = new AtomicLong();
+  }
+
+  /**
+   * Returns the buffer of the given chat room, creating it if needed. This method doesn't
+   * allocate any object, except for the first message to a chat room.
+   *
+   * @param room a name of the chat room.
+   * @return the buffer of the given chat room.
+   */
+  public RoomBuffer getBuffer(String room) {
+    RoomBuffer buffer = buffers.get(room);
+    if (buffer == null) {
+      RoomBuffer newBuffer = new RoomBuffer(maxMessages, maxRoomBytes, totalBytes, maxTotalBytes);
+      buffer = buffers.putIfAbsent(room, newBuffer);
+      if (buffer == null) {
+        buffer = newBuffer;
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Discards the messages of the given chat room. This server node should call it when it stops
+   * hosting the chat room, because the messages of the chat room are no longer propagated to this
+   * server node.
+   *
+   * <p>A sender which got the buffer before this method records nothing in it afterwards. Since
+   * the chat room had no connections, the sender has nobody to deliver to either, unless a new
+   * participant enters at the same time. That participant replays the new buffer, so it may miss
+   * the messages sent just before it entered, but never gets one twice.</p>
+   *
+   * @param room a name of the chat room.
+   */
+  public void clear(String room) {
+    RoomBuffer buffer = buffers.remove(room);
+    if (buffer != null) {
+      buffer.release();
+    }
+  }
+
+  /**
+   * Returns the number of the chat rooms with a buffer.
+   *
+   * @return the number of the chat rooms with a buffer.
+   */
+  public long size() {
+    return buffers.size();
+  }
+
+  /**
+   * Returns the bytes of the messages of every chat room.
+   *
+   * @return the bytes of the messages of every chat room.
+   */
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A routing table that maps each chat room to the server nodes hosting at least one participant
+ * of it, so that a message is propagated only to the server nodes which have subscribers in its
+ * chat room.
+ *
+ * <p>The table is updated immediately by the ROOM_SUBSCRIBE and ROOM_UNSUBSCRIBE announcements
+ * from other server nodes, and periodically rebuilt by {@link #refresh(Map, Set)} from the
+ * ChatRoomParticipants entities in the datastore to repair lost announcements. A route which is
+ * not backed by the datastore yet is kept for the given grace period, because the server nodes
+ * persist their participant lists a little after announcing the subscription.</p>
+ *
+ * <p>Lookups never block. Updates are rare compared to lookups, and are serialized.</p>
+ */
+public class RoomRoutingTable {
+
+  private static final Set<String> EMPTY_NODE_SET = ImmutableSet.of();
+
+  private final long graceMillis;
+
+  /* room -> (websocket URL -> the last time the route was confirmed) */
+  private final ConcurrentMap<String, ConcurrentMap<String, Long>> routes;
+
+  /**
+   * Creates an empty RoomRoutingTable.
+   *
+   * @param graceMillis the time in milliseconds to keep a route which the datastore doesn't know.
+   */
+  public RoomRoutingTable(long graceMillis) {
+    this.graceMillis = graceMillis;
+    this.routes = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the websocket URLs of the server nodes hosting the given chat room.
+   *
+   * @param room a name of the chat room, or null, which no server node hosts.
+   * @return a live view of the websocket URLs of the server nodes hosting the given chat room.
+   */
+  public Set<String> getWebSocketUrls(String room) {
+    if (room == null) {
+      return EMPTY_NODE_SET;
+    }
+    ConcurrentMap<String, Long> nodes = routes.get(room);
+    if (nodes == null) {
+      return EMPTY_NODE_SET;
+    }
+    return nodes.keySet();
+  }
+
+  /**
+   * Adds a route to the given server node for the given chat room.
+   *
+   * @param room a name of the chat room.
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   */
+  public synchronized void subscribe(String room, String webSocketUrl) {
+    ConcurrentMap<String, Long> nodes = routes.get(room);
+    if (nodes == null) {
+      nodes = new ConcurrentHashMap<>();
+      routes.put(room, nodes);
+    }
+    nodes.put(webSocketUrl, System.currentTimeMillis());
+  }
+
+  /**
+   * Removes the route to the given server node for the given chat room.
+   *
+   * @param room a name of the chat room.
+   * @param webSocketUrl an identifier of a single server node, in the form of websocket URL,
+   *                     e.x. "ws://173.255.112.201:65080/".
+   */
+  public synchronized void unsubscribe(String room, String webSocketUrl) {
+    ConcurrentMap<String, Long> nodes = routes.get(room);
+    if (nodes != null) {
+      nodes.remove(webSocketUrl);
+      if (nodes.isEmpty()) {
+        routes.remove(room);
+      }
+    }
+  }
+
+  /**
+   * Removes every route to the server nodes which are no longer active.
+   *
+   * @param webSocketUrls the websocket URLs of the active server nodes.
+   */
+  public synchronized void retainNodes(Collection<String> webSocketUrls) {
+    Iterator<ConcurrentMap<String, Long>> iterator = routes.values().iterator();
+    while (iterator.hasNext()) {
+      ConcurrentMap<String, Long> nodes = iterator.next();
+      nodes.keySet().retainAll(webSocketUrls);
+      if (nodes.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the routes from the hosted chat rooms recorded in the datastore.
+   *
+   * <p>The recorded routes to the active server nodes are confirmed. The other routes are
+   * removed unless they were confirmed within the grace period.</p>
+   *
+   * @param hostedRooms the websocket URLs of the server nodes hosting each chat room, as
+   *                    recorded in the datastore.
+   * @param webSocketUrls the websocket URLs of the active server nodes.
+   */
+  public synchronized void refresh(Map<String, Set<String>> hostedRooms,
+                                   Set<String> webSocketUrls) {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, ConcurrentMap<String, Long>>> iterator =
+        routes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, ConcurrentMap<String, Long>> entry = iterator.next();
+      Set<String> recordedNodes = hostedRooms.get(entry.getKey());
+      Iterator<Map.Entry<String, Long>> nodeIterator = entry.getValue().entrySet().iterator();
+      while (nodeIterator.hasNext()) {
+        Map.Entry<String, Long> node = nodeIterator.next();
+        boolean recorded = recordedNodes != null && recordedNodes.contains(node.getKey());
+        if (! webSocketUrls.contains(node.getKey())
+            || (! recorded && node.getValue() < now - graceMillis)) {
+          nodeIterator.remove();
+        }
+      }
+      if (entry.getValue().isEmpty()) {
+        iterator.remove();
+      }
+    }
+    for (Map.Entry<String, Set<String>> entry : hostedRooms.entrySet()) {
+      for (String webSocketUrl : entry.getValue()) {
+        if (webSocketUrls.contains(webSocketUrl)) {
+          subscribe(entry.getKey(), webSocketUrl);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of the chat rooms hosted by at least one server node.
+   *
+   * @return the number of the chat rooms hosted by at least one server node.
+   */
+  public int size() {
+    return routes.size();
+  }
+}
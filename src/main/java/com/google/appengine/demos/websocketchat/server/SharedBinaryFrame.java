@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import org.java_websocket.framing.Framedata;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A binary frame whose payload is shared by every recipient of a broadcast, like
+ * {@link SharedTextFrame}.
+ */
+public class SharedBinaryFrame implements Framedata {
+
+  private final ByteBuffer payload;
+
+  /**
+   * Creates a SharedBinaryFrame with the given payload. The given array must not be modified
+   * afterwards.
+   *
+   * @param payload a payload to send.
+   */
+  public SharedBinaryFrame(byte[] payload) {
+    this.payload = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the size of the payload in bytes.
+   *
+   * @return the size of the payload in bytes.
+   */
+  public int getPayloadSize() {
+    return payload.remaining();
+  }
+
+  @Override
+  public boolean isFin() {
+    return true;
+  }
+
+  @Override
+  public boolean getTransfereMasked() {
+    return false;
+  }
+
+  @Override
+  public Opcode getOpcode() {
+    return Opcode.BINARY;
+  }
+
+  @Override
+  public ByteBuffer getPayloadData() {
+    return payload.duplicate();
+  }
+
+  @Override
+  public void append(Framedata nextframe) {
+    throw new UnsupportedOperationException("A SharedBinaryFrame can't be modified.");
+  }
+}
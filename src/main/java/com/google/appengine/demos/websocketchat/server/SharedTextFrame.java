@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import org.java_websocket.framing.Framedata;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A text frame whose payload is encoded only once and shared by every recipient of a broadcast.
+ *
+ * <p>The draft of each connection reads the payload through {@link #getPayloadData()}, which
+ * returns an independent read-only view of the same bytes, so a single instance can be passed to
+ * {@link org.java_websocket.WebSocket#sendFrame(Framedata)} of any number of connections.</p>
+ */
+public class SharedTextFrame implements Framedata {
+
+  private final String text;
+
+  private final ByteBuffer payload;
+
+  /**
+   * Creates a SharedTextFrame by encoding the given text in UTF-8.
+   *
+   * @param text a text to send, typically a serialized message.
+   */
+  public SharedTextFrame(String text) {
+    this.text = text;
+    this.payload = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the text of this frame.
+   *
+   * @return the text of this frame.
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Returns the size of the encoded payload in bytes.
+   *
+   * @return the size of the encoded payload in bytes.
+   */
+  public int getPayloadSize() {
+    return payload.remaining();
+  }
+
+  @Override
+  public boolean isFin() {
+    return true;
+  }
+
+  @Override
+  public boolean getTransfereMasked() {
+    return false;
+  }
+
+  @Override
+  public Opcode getOpcode() {
+    return Opcode.TEXT;
+  }
+
+  @Override
+  public ByteBuffer getPayloadData() {
+    return payload.duplicate();
+  }
+
+  @Override
+  public void append(Framedata nextframe) {
+    throw new UnsupportedOperationException("A SharedTextFrame can't be modified.");
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket for limiting the rate of the messages.
+ *
+ * <p>The bucket holds at most the burst size of tokens, and is refilled continuously at the
+ * given rate. Every message takes a token, and a message which finds the bucket empty is over
+ * the limit. {@link #tryAcquire()} doesn't allocate any object, so it can be called for every
+ * incoming message.</p>
+ */
+public class TokenBucket {
+
+  private final double tokensPerNano;
+
+  private final double burst;
+
+  private double tokens;
+
+  private long lastRefillNanos;
+
+  /**
+   * Creates a full TokenBucket.
+   *
+   * @param messagesPerSecond the sustained rate of the messages.
+   * @param burst the maximum number of the messages allowed at once.
+   */
+  public TokenBucket(double messagesPerSecond, int burst) {
+    this.tokensPerNano = messagesPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = burst;
+    this.tokens = burst;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Takes a token if available.
+   *
+   * @return whether or not the message is within the limit.
+   */
+  public synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    return true;
+  }
+}
@@ -20,6 +20,7 @@ import com.google.appengine.api.LifecycleManager;
 import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.appengine.demos.websocketchat.domain.ChatRoomParticipants;
+import com.google.appengine.demos.websocketchat.domain.ServerNodeLoad;
 import com.google.appengine.demos.websocketchat.domain.WebSocketServerNode;
 import com.google.appengine.demos.websocketchat.server.ChatSocketServer;
 import com.google.appengine.demos.websocketchat.server.ChatSocketServerShutdownHook;
@@ -42,6 +43,7 @@ public class StartupServlet extends HttpServlet {
   static {
     ObjectifyService.register(WebSocketServerNode.class);
     ObjectifyService.register(ChatRoomParticipants.class);
+    ObjectifyService.register(ServerNodeLoad.class);
     LOG.info("The startup servlet called.");
     LifecycleManager.getInstance().setShutdownHook(new ChatSocketServerShutdownHook());
     String version = SystemProperty.applicationVersion.get();
@@ -23,7 +23,8 @@
 <%
   UserService userService = UserServiceFactory.getUserService();
   User user = userService.getCurrentUser();
-  String webSocketURL = ChatSocketServer.ChatServerBridge.getInstance().getWebSocketURL();
+  String webSocketURL =
+      ChatSocketServer.ChatServerBridge.getInstance().getWebSocketURLForNewClient();
 %>
 
 <!DOCTYPE html>
@@ -57,20 +58,98 @@
 
 </body>
 <script>
+  var PARTICIPANTS_REQUEST_TIMEOUT_MILLIS = 5000;
+
   var wschat = {
     connection: null,
-    should_be_connected: false
+    should_be_connected: false,
+    participants: {version: 0, names: {}, requested: false},
+    received: null
   }
 
-  function updateParticipantsList(message) {
-    var participants = message.participantSet;
+  // Opt in to the compressed messages only when the page itself was opened with
+  // ?compress=deflate-raw, and the browser can decompress raw DEFLATE.
+  function webSocketURL() {
+    var url = '<%= webSocketURL %>';
+    if (window.DecompressionStream
+        && /[?&]compress=deflate-raw(&|$)/.test(window.location.search)) {
+      url += '?compress=deflate-raw';
+    }
+    return url;
+  }
+
+  // Returns a promise of the text of a message, which arrives compressed in a binary frame.
+  function decodeMessageData(data) {
+    if (typeof data === 'string') {
+      return Promise.resolve(data);
+    }
+    var stream = new Blob([data]).stream().pipeThrough(new DecompressionStream('deflate-raw'));
+    return new Response(stream).text();
+  }
+
+  function renderParticipantsList() {
+    var participants = Object.keys(wschat.participants.names).sort();
     $('#participants').children().remove();
     for (var i = 0; i < participants.length; i++) {
       $('#participants').append('<p>' + $('<div/>').text(participants[i]).html());
     }
   }
 
+  function updateParticipantsList(message) {
+    if (message.version < wschat.participants.version) {
+      return;
+    }
+    var participants = message.participantSet;
+    wschat.participants.version = message.version;
+    wschat.participants.names = {};
+    wschat.participants.requested = false;
+    for (var i = 0; i < participants.length; i++) {
+      wschat.participants.names[participants[i]] = true;
+    }
+    renderParticipantsList();
+  }
+
+  function applyParticipantsDelta(message) {
+    if (message.version <= wschat.participants.version) {
+      return;
+    }
+    if (message.version != wschat.participants.version + 1) {
+      // We missed some changes, ask for the full list.
+      requestParticipantsList();
+      return;
+    }
+    wschat.participants.version = message.version;
+    for (var i = 0; i < message.added.length; i++) {
+      wschat.participants.names[message.added[i]] = true;
+    }
+    for (var i = 0; i < message.removed.length; i++) {
+      delete wschat.participants.names[message.removed[i]];
+    }
+    renderParticipantsList();
+  }
+
+  function requestParticipantsList() {
+    if (wschat.participants.requested) {
+      return;
+    }
+    var participants = wschat.participants;
+    participants.requested = true;
+    // The server sends nothing back before it has a snapshot, or when it rejects the request,
+    // so allow another request after a while.
+    setTimeout(function () {
+      participants.requested = false;
+    }, PARTICIPANTS_REQUEST_TIMEOUT_MILLIS);
+    var messageBody = {
+      type: 'PARTICIPANTS',
+      name: $('#name').val(),
+      room: $('#room').val(),
+      message: ''
+    }
+    wschat.connection.send(JSON.stringify(messageBody));
+  }
+
   function resetDOMsOnClose() {
+    wschat.participants = {version: 0, names: {}, requested: false};
     $('#participants').children().remove();
     $('#enter').show();
     $('#leave').hide();
@@ -89,7 +168,9 @@
     $('#leave').show();
     $('#name').attr('readonly', true);
     $('#room').attr('readonly', true);
-    wschat.connection = new WebSocket('<%= webSocketURL %>');
+    wschat.connection = new WebSocket(webSocketURL());
+    wschat.connection.binaryType = 'arraybuffer';
+    wschat.received = Promise.resolve();
     wschat.connection.onopen = function () {
       console.log('Websocket opened');
       var messageBody = {
@@ -105,27 +186,12 @@
       closeWebSocketConnection();
     }
     wschat.connection.onmessage = function (e) {
-      var server_message = e.data;
-      console.log('Message received: ' + server_message);
-      var message = JSON.parse(server_message);
-      if (message.type == 'PARTICIPANTS') {
-        updateParticipantsList(message);
-        return;
-      }
-      if (message.type == 'SYSTEM') {
-        $('#messages').prepend('<p class="system">' + $('<div/>').text(message.message).html());
-        $('#name').val(message.name);
-        return;
-      }
-      var text_message;
-      if (message.type == 'MESSAGE') {
-        text_message = message.name + ': ' + message.message;
-      } else if (message.type == 'ENTER') {
-        text_message = message.name + ' entered ' + message.room;
-      } else if (message.type == 'LEAVE') {
-        text_message = message.name + ' left ' + message.room;
-      }
-      $('#messages').prepend('<p>' + $('<div/>').text(text_message).html());
+      // Handle the messages in order, even if some of them take time to decompress.
+      wschat.received = wschat.received.then(function () {
+        return decodeMessageData(e.data);
+      }).then(handleMessage, function (error) {
+        console.log('Failed to decode a message: ' + error);
+      });
     }
     wschat.connection.onclose = function () {
       console.log('Connection closed.');
@@ -133,6 +199,34 @@
     }
     wschat.should_be_connected = true;
   }
+
+  function handleMessage(server_message) {
+    console.log('Message received: ' + server_message);
+    var message = JSON.parse(server_message);
+    if (message.type == 'PARTICIPANTS') {
+      updateParticipantsList(message);
+      return;
+    }
+    if (message.type == 'PARTICIPANTS_DELTA') {
+      applyParticipantsDelta(message);
+      return;
+    }
+    if (message.type == 'SYSTEM') {
+      $('#messages').prepend('<p class="system">' + $('<div/>').text(message.message).html());
+      $('#name').val(message.name);
+      return;
+    }
+    var text_message;
+    if (message.type == 'MESSAGE') {
+      text_message = message.name + ': ' + message.message;
+    } else if (message.type == 'ENTER') {
+      text_message = message.name + ' entered ' + message.room;
+    } else if (message.type == 'LEAVE') {
+      text_message = message.name + ' left ' + message.room;
+    }
+    $('#messages').prepend('<p>' + $('<div/>').text(text_message).html());
+  }
+
   $(document).ready(function () {
     $('#enter').click(function(e) {
       openWebSocketConnection();
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.message;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link BinaryPropagateCodec}.
+ */
+public class BinaryPropagateCodecTest {
+
+  private static final Gson GSON = new Gson();
+
+  /* The default maximum number of the messages in a propagate batch of the ChatSocketServer. */
+  private static final int MAX_BATCH_SIZE = 100;
+
+  private BinaryPropagateCodec.Encoder encoder;
+
+  private BinaryPropagateCodec.Decoder decoder;
+
+  @Before
+  public void setUp() {
+    encoder = new BinaryPropagateCodec.Encoder(GSON);
+    decoder = new BinaryPropagateCodec.Decoder(GSON);
+  }
+
+  private List<PropagatedMessage> roundTrip(List<? extends OutgoingMessage> messages) {
+    return decoder.decode(ByteBuffer.wrap(encoder.encode(messages)));
+  }
+
+  private static void assertDecoded(OutgoingMessage original, PropagatedMessage decoded) {
+    assertEquals(OutgoingMessage.MessageType.PROPAGATE, decoded.getType());
+    assertEquals(original.getRoom(), decoded.getRoom());
+    assertEquals(original.toJson(GSON), decoded.toJson(GSON));
+    if (original instanceof ChatMessage) {
+      assertEquals(original.getType(), decoded.getOriginalType());
+      assertEquals(((ChatMessage) original).getName(), decoded.getName());
+    }
+  }
+
+  private static void assertDecodeFails(byte[] frame) {
+    try {
+      new BinaryPropagateCodec.Decoder(GSON).decode(ByteBuffer.wrap(frame));
+      fail("Decoded a malformed frame: " + Arrays.toString(frame));
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTypeCodesAreStable() {
+    // These codes are on the wire, changing them breaks the server nodes of older versions.
+    assertEquals(0, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.MESSAGE));
+    assertEquals(1, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.PARTICIPANTS));
+    assertEquals(2,
+        BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.PARTICIPANTS_DELTA));
+    assertEquals(3, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.SYSTEM));
+    assertEquals(4, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.ENTER));
+    assertEquals(5, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.LEAVE));
+    assertEquals(6, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.PROPAGATE));
+    assertEquals(7, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.NODE_JOIN));
+    assertEquals(8, BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.NODE_LEAVE));
+    assertEquals(9,
+        BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.ROOM_SUBSCRIBE));
+    assertEquals(10,
+        BinaryPropagateCodec.getTypeCode(OutgoingMessage.MessageType.ROOM_UNSUBSCRIBE));
+  }
+
+  @Test
+  public void testEveryTypeHasCode() {
+    for (OutgoingMessage.MessageType type : OutgoingMessage.MessageType.values()) {
+      assertEquals(type, BinaryPropagateCodec.getType(BinaryPropagateCodec.getTypeCode(type)));
+    }
+  }
+
+  @Test
+  public void testRoundTripEveryMessageType() {
+    List<OutgoingMessage> messages = new ArrayList<>();
+    for (OutgoingMessage.MessageType type : OutgoingMessage.MessageType.values()) {
+      if (! type.equals(OutgoingMessage.MessageType.PROPAGATE)) {
+        messages.add(new ChatMessage(type, "alice", "#vmruntime", "Hello, " + type + "."));
+      }
+    }
+    // Any other message is sent as a PROPAGATE message with its JSON.
+    messages.add(new ParticipantListMessage("#vmruntime",
+        new TreeSet<>(Arrays.asList("alice", "bob")), 3L));
+    List<PropagatedMessage> decoded = roundTrip(messages);
+    assertEquals(messages.size(), decoded.size());
+    for (int i = 0; i < messages.size(); i++) {
+      assertDecoded(messages.get(i), decoded.get(i));
+    }
+  }
+
+  @Test
+  public void testRoundTripEmptyBatch() {
+    assertTrue(roundTrip(Collections.<OutgoingMessage>emptyList()).isEmpty());
+  }
+
+  @Test
+  public void testRoundTripMaximalBatch() {
+    List<ChatMessage> messages = new ArrayList<>();
+    for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+      messages.add(new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "user" + i,
+          "#room" + (i % 7), Strings.repeat("x", 64 * 1024)));
+    }
+    List<PropagatedMessage> decoded = roundTrip(messages);
+    assertEquals(MAX_BATCH_SIZE, decoded.size());
+    for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+      assertDecoded(messages.get(i), decoded.get(i));
+    }
+  }
+
+  @Test
+  public void testRoundTripNullFields() {
+    ChatMessage message = new ChatMessage(OutgoingMessage.MessageType.LEAVE, null, "#vmruntime",
+        null);
+    List<PropagatedMessage> decoded = roundTrip(Collections.singletonList(message));
+    assertDecoded(message, decoded.get(0));
+    assertNull(decoded.get(0).getName());
+  }
+
+  @Test
+  public void testRoundTripNonAsciiNames() {
+    List<ChatMessage> messages = Arrays.asList(
+        new ChatMessage(OutgoingMessage.MessageType.ENTER, "José", "#café", null),
+        new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "日本語", "#チャット",
+            "こんにちは 😀"),
+        new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "Ωmega", "#café", "ü\u0000ß"));
+    List<PropagatedMessage> decoded = roundTrip(messages);
+    for (int i = 0; i < messages.size(); i++) {
+      assertDecoded(messages.get(i), decoded.get(i));
+    }
+  }
+
+  @Test
+  public void testRoomDictionaryAcrossFrames() {
+    for (int frame = 0; frame < 3; frame++) {
+      List<ChatMessage> messages = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        messages.add(new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "alice",
+            "#room" + (frame * 5 + i), "frame " + frame));
+      }
+      List<PropagatedMessage> decoded = roundTrip(messages);
+      for (int i = 0; i < messages.size(); i++) {
+        assertDecoded(messages.get(i), decoded.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testRoomsBeyondDictionaryCapacity() {
+    // More chat rooms than the capacity of the dictionary, in frames of a full batch.
+    int rooms = BinaryPropagateCodec.MAX_ROOMS + MAX_BATCH_SIZE * 2;
+    for (int start = 0; start < rooms; start += MAX_BATCH_SIZE) {
+      List<ChatMessage> messages = new ArrayList<>();
+      for (int i = start; i < start + MAX_BATCH_SIZE; i++) {
+        messages.add(new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "alice",
+            "#room" + i, null));
+      }
+      List<PropagatedMessage> decoded = roundTrip(messages);
+      for (int i = 0; i < messages.size(); i++) {
+        assertDecoded(messages.get(i), decoded.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testTruncatedFrames() {
+    byte[] frame = encoder.encode(Arrays.asList(
+        new ChatMessage(OutgoingMessage.MessageType.ENTER, "José", "#café", null),
+        new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "José", "#café", "Hello.")));
+    for (int length = 0; length < frame.length; length++) {
+      assertDecodeFails(Arrays.copyOf(frame, length));
+    }
+  }
+
+  @Test
+  public void testUnsupportedVersion() {
+    byte[] frame = encoder.encode(Collections.<OutgoingMessage>emptyList());
+    frame[0] = 2;
+    assertDecodeFails(frame);
+  }
+
+  @Test
+  public void testUnknownTypeCodes() {
+    byte[] frame = encoder.encode(Collections.singletonList(
+        new ChatMessage(OutgoingMessage.MessageType.MESSAGE, "alice", "#vmruntime", "Hi.")));
+    // The version and the size precede the type code.
+    for (int code : new int[] {11, 127, -1, -128}) {
+      frame[2] = (byte) code;
+      assertDecodeFails(frame);
+    }
+  }
+
+  @Test
+  public void testUnknownRoomId() {
+    // Version 1, a single message of the type MESSAGE in the chat room with the id 5.
+    assertDecodeFails(new byte[] {1, 1, 0, 5, 0, 0});
+  }
+
+  @Test
+  public void testMalformedVarint() {
+    assertDecodeFails(new byte[] {1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF});
+  }
+
+  @Test
+  public void testMalformedPropagatePayload() {
+    // A PROPAGATE message whose contents are not a JSON object.
+    assertDecodeFails(new byte[] {1, 1, 6, 0, 0, 0, 4, 'a', 'b', 'c'});
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import org.java_websocket.WebSocket;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the handling of the incoming messages by {@link ChatSocketServer}, with the
+ * connections replaced by proxies. The chat server is neither started nor bridged.
+ */
+public class ChatSocketServerTest {
+
+  private static final String ROOM = "room";
+
+  /* The default burst of the rate limit of a chat room. */
+  private static final int ROOM_BURST = 100;
+
+  /**
+   * An open websocket connection which only counts the frames sent to it.
+   */
+  private static class FakeConnection implements InvocationHandler {
+
+    private int sentFrames;
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "isOpen":
+          return true;
+        case "sendFrame":
+          sentFrames++;
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "FakeConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+        default:
+          return null;
+      }
+    }
+
+    WebSocket newProxy() {
+      return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(),
+          new Class<?>[] {WebSocket.class}, this);
+    }
+  }
+
+  private ChatSocketServer chatSocketServer;
+
+  /* A client which sends the messages, and is not in any chat room. */
+  private FakeConnection senderConnection;
+
+  private WebSocket sender;
+
+  /* A client in the chat room. */
+  private FakeConnection recipient;
+
+  @Before
+  public void setUp() {
+    chatSocketServer = new ChatSocketServer(0);
+    senderConnection = new FakeConnection();
+    sender = senderConnection.newProxy();
+    recipient = new FakeConnection();
+    chatSocketServer.getMetaInfoManager().addConnection(recipient.newProxy(), "bob", ROOM);
+  }
+
+  private void assertNothingSent() {
+    assertEquals(0, recipient.sentFrames);
+  }
+
+  @Test
+  public void testClientMessageIsDelivered() {
+    chatSocketServer.onMessage(sender,
+        "{\"type\":\"MESSAGE\",\"name\":\"alice\",\"room\":\"room\",\"message\":\"Hi\"}");
+    assertEquals(1, recipient.sentFrames);
+  }
+
+  @Test
+  public void testClientPropagateIsDropped() {
+    chatSocketServer.onMessage(sender, "{\"type\":\"PROPAGATE\",\"room\":\"room\","
+        + "\"message\":\"{\\\"type\\\":\\\"SYSTEM\\\",\\\"room\\\":\\\"room\\\","
+        + "\\\"message\\\":\\\"Hi\\\"}\"}");
+    assertNothingSent();
+  }
+
+  @Test
+  public void testClientPropagateBatchIsDropped() {
+    chatSocketServer.onMessage(sender, "{\"type\":\"PROPAGATE\",\"messages\":[{\"type\":"
+        + "\"PROPAGATE\",\"room\":\"room\",\"message\":\"{\\\"type\\\":\\\"MESSAGE\\\","
+        + "\\\"room\\\":\\\"room\\\",\\\"message\\\":\\\"Hi\\\"}\"}]}");
+    assertNothingSent();
+  }
+
+  @Test
+  public void testClientServerOnlyTypesAreDropped() {
+    for (String type : new String[] {"SYSTEM", "LEAVE", "PARTICIPANTS_DELTA"}) {
+      chatSocketServer.onMessage(sender, "{\"type\":\"" + type
+          + "\",\"name\":\"alice\",\"room\":\"room\",\"message\":\"Hi\"}");
+    }
+    assertNothingSent();
+  }
+
+  @Test
+  public void testMessageWithoutRoomIsDropped() {
+    chatSocketServer.onMessage(sender,
+        "{\"type\":\"MESSAGE\",\"name\":\"alice\",\"message\":\"Hi\"}");
+    assertNothingSent();
+  }
+
+  @Test
+  public void testMessageOfUnknownTypeIsDropped() {
+    chatSocketServer.onMessage(sender,
+        "{\"type\":\"UNKNOWN\",\"name\":\"alice\",\"room\":\"room\",\"message\":\"Hi\"}");
+    assertNothingSent();
+  }
+
+  @Test
+  public void testParticipantListRequestsAreRateLimited() {
+    for (int i = 0; i < ROOM_BURST * 2; i++) {
+      chatSocketServer.onMessage(sender, "{\"type\":\"PARTICIPANTS\",\"room\":\"room\"}");
+    }
+    // No snapshot has been distributed yet, so every frame is a rejection.
+    assertTrue(senderConnection.sentFrames > 0);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.google.appengine.demos.websocketchat.server;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link RoomHistory}.
+ */
+public class RoomHistoryTest {
+
+  private static SharedTextFrame frame(int bytes) {
+    return new SharedTextFrame(Strings.repeat("x", bytes));
+  }
+
+  @Test
+  public void testBufferIsKeptWhileHosted() {
+    RoomHistory history = new RoomHistory(10, 100, 100);
+    RoomHistory.RoomBuffer buffer = history.getBuffer("room");
+    for (int i = 0; i < 1000; i++) {
+      history.getBuffer("other" + i).add(frame(10));
+    }
+    // A sender and a new participant of the same chat room always lock the same buffer.
+    assertSame(buffer, history.getBuffer("room"));
+  }
+
+  @Test
+  public void testRingBufferDropsTheOldest() {
+    RoomHistory history = new RoomHistory(2, 100, 1000);
+    RoomHistory.RoomBuffer buffer = history.getBuffer("room");
+    SharedTextFrame first = frame(1);
+    SharedTextFrame second = frame(2);
+    SharedTextFrame third = frame(3);
+    buffer.add(first);
+    buffer.add(second);
+    buffer.add(third);
+    assertEquals(Arrays.asList(second, third), buffer.getFrames());
+    assertEquals(5, history.getTotalBytes());
+  }
+
+  @Test
+  public void testTotalBytesAreBounded() {
+    RoomHistory history = new RoomHistory(10, 100, 100);
+    for (int i = 0; i < 20; i++) {
+      history.getBuffer("room" + i).add(frame(30));
+    }
+    assertTrue(history.getTotalBytes() <= 100);
+    // A chat room still records a new message in place of its own older ones.
+    RoomHistory.RoomBuffer buffer = history.getBuffer("room0");
+    SharedTextFrame latest = frame(30);
+    buffer.add(latest);
+    assertEquals(Arrays.asList(latest), buffer.getFrames());
+    assertTrue(history.getTotalBytes() <= 100);
+  }
+
+  @Test
+  public void testClearReleasesTheBuffer() {
+    RoomHistory history = new RoomHistory(10, 100, 100);
+    RoomHistory.RoomBuffer buffer = history.getBuffer("room");
+    buffer.add(frame(50));
+    history.clear("room");
+    assertEquals(0, history.getTotalBytes());
+    // A sender which got the buffer before the clear records nothing in it.
+    buffer.add(frame(50));
+    assertTrue(buffer.getFrames().isEmpty());
+    assertEquals(0, history.getTotalBytes());
+    assertNotSame(buffer, history.getBuffer("room"));
+  }
+}